@@ -15,6 +15,7 @@
  */
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * Utilities for encoding and decoding the Base64 representation of
@@ -70,11 +71,18 @@ public class Base64 {
         public byte[] output;
         public int op;
 
+        /**
+         * Position within this.output at which the next call to
+         * process() starts writing.  Normally 0; streaming callers set
+         * it to write straight into a larger caller-owned buffer.
+         */
+        public int outputOffset;
+
         /**
          * Encode/decode another block of input data.  this.output is
          * provided by the caller, and must be big enough to hold all
-         * the coded data.  On exit, this.opwill be set to the length
-         * of the coded data.
+         * the coded data.  On exit, this.op will be set to the end
+         * of the coded data (its length when outputOffset is 0).
          *
          * @param finish true if this is the final call to process for
          *               this object.  Will finalize the coder state and
@@ -90,6 +98,13 @@ public class Base64 {
          * be an overestimate.
          */
         public abstract int maxOutputSize(int len);
+
+        /**
+         * @return the largest number of input bytes that can be passed
+         * to process() while guaranteeing that the coded data fits in
+         * {@code outputLen} bytes.  The inverse of maxOutputSize().
+         */
+        public abstract int maxInputSize(int outputLen);
     }
 
     //  --------------------------------------------------------
@@ -234,6 +249,12 @@ public class Base64 {
 
         final private int[] alphabet;
 
+        /**
+         * Data bytes per bulk iteration in process(): one line of
+         * MIME-wrapped input.
+         */
+        private static final int BULK_CHARS = Encoder.LINE_GROUPS * 4;
+
         public Decoder(int flags, byte[] output) {
             this.output = output;
 
@@ -250,6 +271,10 @@ public class Base64 {
             return len * 3 / 4 + 10;
         }
 
+        public int maxInputSize(int outputLen) {
+            return outputLen <= 10 ? 0 : (outputLen - 10) / 3 * 4;
+        }
+
         /**
          * Decode another block of input data.
          *
@@ -269,11 +294,49 @@ public class Base64 {
             // the member variable is final.)
             int state = this.state;
             int value = this.value;
-            int op = 0;
+            int op = outputOffset;
             final byte[] output = this.output;
             final int[] alphabet = this.alphabet;
 
+            // Bulk path: decode a whole MIME line (BULK_CHARS data
+            // bytes) per iteration with no per-tuple bounds checks, and
+            // step over the line break directly.  A tuple that isn't
+            // all data bytes ends the run; the tuples before it are
+            // kept, and the bulk path isn't tried again until after the
+            // next '\n', so other line lengths and separators cost one
+            // attempt per line at most.
+            boolean bulk = true;
+
             while (p < len) {
+                if (bulk && state == 0 && len - p >= BULK_CHARS) {
+                    while (p + BULK_CHARS <= len) {
+                        final int end = p + BULK_CHARS;
+                        while (p < end) {
+                            int v = (alphabet[input[p] & 0xff] << 18) |
+                                    (alphabet[input[p + 1] & 0xff] << 12) |
+                                    (alphabet[input[p + 2] & 0xff] << 6) |
+                                    (alphabet[input[p + 3] & 0xff]);
+                            if (v < 0) {
+                                break;
+                            }
+                            output[op + 2] = (byte) v;
+                            output[op + 1] = (byte) (v >> 8);
+                            output[op] = (byte) (v >> 16);
+                            op += 3;
+                            p += 4;
+                        }
+                        if (p < end) {
+                            // Leave the rest of this line to the paths below.
+                            bulk = false;
+                            break;
+                        }
+                        while (p < len && (input[p] == '\r' || input[p] == '\n')) {
+                            p++;
+                        }
+                    }
+                    if (p >= len) break;
+                }
+
                 // Try the fast path:  we're starting a new tuple and the
                 // next four bytes of the input stream are all data
                 // bytes.  This corresponds to going through states
@@ -309,6 +372,9 @@ public class Base64 {
                 // machine implementation.
 
                 int d = alphabet[input[p++] & 0xff];
+                if (input[p - 1] == '\n') {
+                    bulk = true;
+                }
 
                 switch (state) {
                     case 0:
@@ -578,6 +644,33 @@ public class Base64 {
         final public boolean do_newline;
         final public boolean do_cr;
         final private byte[] alphabet;
+        final private byte[] pairs;
+
+        /**
+         * Inputs at least this long take the bulk path in process().
+         */
+        /* package */ static final int BULK_THRESHOLD = 256;
+
+        /**
+         * Groups per bulk iteration when not wrapping lines.
+         */
+        private static final int BULK_GROUPS = 16;
+
+        /**
+         * Lookup tables from 12 input bits to the two output bytes
+         * they encode to, for the bulk path.
+         */
+        private static final byte ENCODE_PAIRS[] = buildPairs(ENCODE);
+        private static final byte ENCODE_PAIRS_WEBSAFE[] = buildPairs(ENCODE_WEBSAFE);
+
+        private static byte[] buildPairs(byte[] alphabet) {
+            byte[] pairs = new byte[2 << 12];
+            for (int i = 0; i < (1 << 12); i++) {
+                pairs[i << 1] = alphabet[i >> 6];
+                pairs[(i << 1) + 1] = alphabet[i & 0x3f];
+            }
+            return pairs;
+        }
 
         public Encoder(int flags, byte[] output) {
             this.output = output;
@@ -586,6 +679,7 @@ public class Base64 {
             do_newline = (flags & NO_WRAP) == 0;
             do_cr = (flags & CRLF) != 0;
             alphabet = ((flags & URL_SAFE) == 0) ? ENCODE : ENCODE_WEBSAFE;
+            pairs = ((flags & URL_SAFE) == 0) ? ENCODE_PAIRS : ENCODE_PAIRS_WEBSAFE;
 
             tail = new byte[2];
             tailLen = 0;
@@ -601,11 +695,15 @@ public class Base64 {
             return len * 8 / 5 + 10;
         }
 
+        public int maxInputSize(int outputLen) {
+            return outputLen <= 10 ? 0 : (outputLen - 10) / 8 * 5;
+        }
+
         public boolean process(byte[] input, int offset, int len, boolean finish) {
             // Using local variables makes the encoder about 9% faster.
             final byte[] alphabet = this.alphabet;
             final byte[] output = this.output;
-            int op = 0;
+            int op = outputOffset;
             int count = this.count;
 
             int p = offset;
@@ -659,6 +757,59 @@ public class Base64 {
             // At this point either there is no tail, or there are fewer
             // than 3 bytes of input available.
 
+            // Bulk path for large inputs: whole output lines (or runs
+            // of BULK_GROUPS groups when not wrapping) per iteration,
+            // with one 12-bit table lookup per pair of output
+            // characters and no per-group line counting.  You can
+            // remove this whole block and the output should be the
+            // same, just slower.
+            if (len - p >= BULK_THRESHOLD) {
+                // When wrapping, finish the current partial line group
+                // by group first so the bulk loop starts on a line
+                // boundary.
+                if (do_newline) {
+                    while (count != LINE_GROUPS) {
+                        v = ((input[p] & 0xff) << 16) |
+                                ((input[p + 1] & 0xff) << 8) |
+                                (input[p + 2] & 0xff);
+                        output[op++] = alphabet[(v >> 18) & 0x3f];
+                        output[op++] = alphabet[(v >> 12) & 0x3f];
+                        output[op++] = alphabet[(v >> 6) & 0x3f];
+                        output[op++] = alphabet[v & 0x3f];
+                        p += 3;
+                        if (--count == 0) {
+                            if (do_cr) output[op++] = '\r';
+                            output[op++] = '\n';
+                            count = LINE_GROUPS;
+                        }
+                    }
+                }
+
+                final byte[] pairs = this.pairs;
+                final int groups = do_newline ? LINE_GROUPS : BULK_GROUPS;
+                final int span = groups * 3;
+                while (p + span <= len) {
+                    final int end = p + span;
+                    while (p < end) {
+                        v = ((input[p] & 0xff) << 16) |
+                                ((input[p + 1] & 0xff) << 8) |
+                                (input[p + 2] & 0xff);
+                        int hi = (v >>> 12) << 1;
+                        int lo = (v & 0xfff) << 1;
+                        output[op] = pairs[hi];
+                        output[op + 1] = pairs[hi + 1];
+                        output[op + 2] = pairs[lo];
+                        output[op + 3] = pairs[lo + 1];
+                        p += 3;
+                        op += 4;
+                    }
+                    if (do_newline) {
+                        if (do_cr) output[op++] = '\r';
+                        output[op++] = '\n';
+                    }
+                }
+            }
+
             // The main loop, turning 3 input bytes into 4 output bytes on
             // each iteration.
             while (p + 3 <= len) {
@@ -700,8 +851,9 @@ public class Base64 {
                     }
                 } else if (p - tailLen == len - 2) {
                     int t = 0;
-                    v = (((tailLen > 1 ? tail[t++] : input[p++]) & 0xff) << 10) |
-                            (((tailLen > 0 ? tail[t++] : input[p++]) & 0xff) << 2);
+                    // Tail bytes come before input bytes.
+                    v = (((tailLen > 0 ? tail[t++] : input[p++]) & 0xff) << 10) |
+                            (((tailLen > 1 ? tail[t++] : input[p++]) & 0xff) << 2);
                     tailLen -= t;
                     output[op++] = alphabet[(v >> 12) & 0x3f];
                     output[op++] = alphabet[(v >> 6) & 0x3f];
@@ -713,7 +865,9 @@ public class Base64 {
                         if (do_cr) output[op++] = '\r';
                         output[op++] = '\n';
                     }
-                } else if (do_newline && op > 0 && count != LINE_GROUPS) {
+                } else if (do_newline && count != LINE_GROUPS) {
+                    // A previous call may have left a partial line even
+                    // if this one had no input, so check count only.
                     if (do_cr) output[op++] = '\r';
                     output[op++] = '\n';
                 }
@@ -739,6 +893,147 @@ public class Base64 {
         }
     }
 
+    //  --------------------------------------------------------
+    //  ByteBuffer streaming
+    //  --------------------------------------------------------
+
+    /**
+     * Incrementally encode or decode between ByteBuffers, in the
+     * style of {@link java.nio.charset.CharsetEncoder}.  Heap buffers
+     * are read and written in place through their backing arrays;
+     * direct buffers go through a fixed scratch area, so no call
+     * allocates.
+     */
+    public static class BufferCoder {
+        private static final int DEFAULT_SCRATCH_SIZE = 8192;
+
+        private final Coder coder;
+        private final byte[] scratch;
+        private final int inputScratchLen;
+        private final int outputScratchStart;
+        private boolean finished = false;
+
+        private BufferCoder(Coder coder, byte[] scratch) {
+            if (scratch.length < 64) {
+                throw new IllegalArgumentException("scratch buffer too small");
+            }
+            this.coder = coder;
+            this.scratch = scratch;
+            // Split the scratch area so that a full input half always
+            // codes into the output half.
+            this.outputScratchStart = scratch.length / 2;
+            this.inputScratchLen = coder.maxInputSize(scratch.length - outputScratchStart);
+        }
+
+        /**
+         * Code as much of {@code src} into {@code dst} as fits.
+         *
+         * @param endOfInput true if {@code src} holds the last of the
+         *                   input.  The coder is finished once a call
+         *                   with this flag returns true.
+         * @return true if all of {@code src} was consumed (and the
+         * coder finished, if {@code endOfInput}); false if {@code dst}
+         * filled up and must be drained before calling again.
+         * @throws IllegalArgumentException if the input is not valid
+         *                                  base-64 (decoding only)
+         */
+        public boolean process(ByteBuffer src, ByteBuffer dst, boolean endOfInput) {
+            if (finished) {
+                throw new IllegalStateException("coder already finished");
+            }
+            while (true) {
+                if (!src.hasRemaining() && !endOfInput) {
+                    return true;
+                }
+
+                int n = Math.min(src.remaining(), coder.maxInputSize(dst.remaining()));
+                if (!src.hasArray() || !dst.hasArray()) {
+                    n = Math.min(n, inputScratchLen);
+                }
+                boolean finish = endOfInput && n == src.remaining();
+                if (n == 0 && (!finish || dst.remaining() < 10)) {
+                    // Not even the final tail (at most 6 bytes) is
+                    // guaranteed to fit.
+                    return false;
+                }
+
+                byte[] input;
+                int inputOffset;
+                if (src.hasArray()) {
+                    input = src.array();
+                    inputOffset = src.arrayOffset() + src.position();
+                    src.position(src.position() + n);
+                } else {
+                    src.get(scratch, 0, n);
+                    input = scratch;
+                    inputOffset = 0;
+                }
+
+                if (dst.hasArray()) {
+                    coder.output = dst.array();
+                    coder.outputOffset = dst.arrayOffset() + dst.position();
+                } else {
+                    coder.output = scratch;
+                    coder.outputOffset = outputScratchStart;
+                }
+                if (!coder.process(input, inputOffset, n, finish)) {
+                    throw new IllegalArgumentException("bad base-64");
+                }
+                int written = coder.op - coder.outputOffset;
+                if (dst.hasArray()) {
+                    dst.position(dst.position() + written);
+                } else {
+                    dst.put(scratch, outputScratchStart, written);
+                }
+
+                if (finish) {
+                    finished = true;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true once a call with {@code endOfInput} has completed
+         */
+        public boolean isFinished() {
+            return finished;
+        }
+    }
+
+    /**
+     * @param flags controls certain features of the encoded output.
+     *              Passing {@code DEFAULT} results in output that
+     *              adheres to RFC 2045.
+     */
+    public static BufferCoder newBufferEncoder(int flags) {
+        return new BufferCoder(new Encoder(flags, null), new byte[BufferCoder.DEFAULT_SCRATCH_SIZE]);
+    }
+
+    /**
+     * @param scratch caller-supplied working space used only when
+     *                either buffer is direct
+     */
+    public static BufferCoder newBufferEncoder(int flags, byte[] scratch) {
+        return new BufferCoder(new Encoder(flags, null), scratch);
+    }
+
+    /**
+     * @param flags controls certain features of the decoded output.
+     *              Pass {@code DEFAULT} to decode standard Base64.
+     */
+    public static BufferCoder newBufferDecoder(int flags) {
+        return new BufferCoder(new Decoder(flags, null), new byte[BufferCoder.DEFAULT_SCRATCH_SIZE]);
+    }
+
+    /**
+     * @param scratch caller-supplied working space used only when
+     *                either buffer is direct
+     */
+    public static BufferCoder newBufferDecoder(int flags, byte[] scratch) {
+        return new BufferCoder(new Decoder(flags, null), scratch);
+    }
+
     private Base64() {
     }   // don't instantiate
 }
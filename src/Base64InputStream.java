@@ -0,0 +1,167 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that does Base64 decoding (or encoding) on the data
+ * read through it.
+ * <p/>
+ * Reads from the wrapped stream go into a fixed input buffer and are
+ * coded into a fixed output buffer; both may be supplied by the
+ * caller.
+ */
+public class Base64InputStream extends FilterInputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Base64.Coder coder;
+    private final byte[] inputBuffer;
+    private boolean eof = false;
+    private int outputStart = 0;
+    private int outputEnd = 0;
+
+    /**
+     * An InputStream that performs Base64 decoding on the data read
+     * from the wrapped stream.
+     *
+     * @param in    the InputStream to read the source data from
+     * @param flags bit flags for controlling the decoder; see the
+     *              constants in {@link Base64}
+     */
+    public Base64InputStream(InputStream in, int flags) {
+        this(in, flags, false);
+    }
+
+    /**
+     * Performs Base64 encoding or decoding on the data read from the
+     * wrapped InputStream.
+     *
+     * @param in     the InputStream to read the source data from
+     * @param flags  bit flags for controlling the decoder; see the
+     *               constants in {@link Base64}
+     * @param encode true to encode, false to decode
+     */
+    public Base64InputStream(InputStream in, int flags, boolean encode) {
+        this(in, flags, encode, new byte[DEFAULT_BUFFER_SIZE], null);
+    }
+
+    /**
+     * @param inputBuffer  caller-supplied space for raw reads from
+     *                     {@code in}
+     * @param outputBuffer caller-supplied space for coded data, or
+     *                     null to allocate one.  It must hold
+     *                     {@code maxOutputSize(inputBuffer.length)}
+     *                     bytes of the chosen coder.
+     */
+    public Base64InputStream(InputStream in, int flags, boolean encode, byte[] inputBuffer, byte[] outputBuffer) {
+        super(in);
+        if (encode) {
+            coder = new Base64.Encoder(flags, null);
+        } else {
+            coder = new Base64.Decoder(flags, null);
+        }
+        int required = coder.maxOutputSize(inputBuffer.length);
+        if (outputBuffer == null) {
+            outputBuffer = new byte[required];
+        } else if (outputBuffer.length < required) {
+            throw new IllegalArgumentException("output buffer too small");
+        }
+        coder.output = outputBuffer;
+        this.inputBuffer = inputBuffer;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public int available() {
+        return outputEnd - outputStart;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (outputStart >= outputEnd) {
+                refill();
+                if (outputStart >= outputEnd) {
+                    break;
+                }
+            }
+            int bytes = (int) Math.min(n - skipped, outputEnd - outputStart);
+            outputStart += bytes;
+            skipped += bytes;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (outputStart >= outputEnd) {
+            if (eof) {
+                return -1;
+            }
+            refill();
+        }
+        return coder.output[outputStart++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (outputStart >= outputEnd) {
+            if (eof) {
+                return -1;
+            }
+            refill();
+        }
+        int bytes = Math.min(len, outputEnd - outputStart);
+        System.arraycopy(coder.output, outputStart, b, off, bytes);
+        outputStart += bytes;
+        return bytes;
+    }
+
+    /**
+     * Read data from the input stream into inputBuffer, then
+     * decode/encode it into the empty coder.output, and reset the
+     * outputStart and outputEnd pointers.  May produce no output if
+     * the read returned only whitespace.
+     */
+    private void refill() throws IOException {
+        if (eof) {
+            return;
+        }
+        int bytesRead = in.read(inputBuffer, 0, inputBuffer.length);
+        boolean success;
+        coder.outputOffset = 0;
+        if (bytesRead == -1) {
+            eof = true;
+            success = coder.process(inputBuffer, 0, 0, true);
+        } else {
+            success = coder.process(inputBuffer, 0, bytesRead, false);
+        }
+        if (!success) {
+            throw new Base64DataException("bad base-64");
+        }
+        outputEnd = coder.op;
+        outputStart = 0;
+    }
+}
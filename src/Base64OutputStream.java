@@ -0,0 +1,131 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that does Base64 encoding (or decoding) on the data
+ * written to it, writing the resulting data to another OutputStream.
+ * <p/>
+ * Data is coded in chunks straight into a single fixed buffer (which
+ * may be supplied by the caller), so the memory used does not depend
+ * on how much data passes through the stream.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Base64.Coder coder;
+    private final int flags;
+    private final int maxChunk;
+    private final byte[] single = new byte[1];
+    private boolean closed = false;
+
+    /**
+     * Performs Base64 encoding on the data written to the stream,
+     * writing the encoded data to another OutputStream.
+     *
+     * @param out   the OutputStream to write the encoded data to
+     * @param flags bit flags for controlling the encoder; see the
+     *              constants in {@link Base64}
+     */
+    public Base64OutputStream(OutputStream out, int flags) {
+        this(out, flags, true);
+    }
+
+    /**
+     * Performs Base64 encoding or decoding on the data written to the
+     * stream, writing the encoded/decoded data to another
+     * OutputStream.
+     *
+     * @param out    the OutputStream to write the encoded data to
+     * @param flags  bit flags for controlling the encoder; see the
+     *               constants in {@link Base64}
+     * @param encode true to encode, false to decode
+     */
+    public Base64OutputStream(OutputStream out, int flags, boolean encode) {
+        this(out, flags, encode, new byte[DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * @param buffer caller-supplied space for the coded output; at
+     *               least 64 bytes.  The stream owns it until closed.
+     */
+    public Base64OutputStream(OutputStream out, int flags, boolean encode, byte[] buffer) {
+        super(out);
+        if (buffer.length < 64) {
+            throw new IllegalArgumentException("buffer too small");
+        }
+        this.flags = flags;
+        if (encode) {
+            coder = new Base64.Encoder(flags, buffer);
+        } else {
+            coder = new Base64.Decoder(flags, buffer);
+        }
+        maxChunk = coder.maxInputSize(buffer.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, maxChunk);
+            internalWrite(b, off, n, false);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Flushes the wrapped stream.  Up to two bytes of input (three
+     * when decoding) may still be held by the coder until close().
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        IOException thrown = null;
+        try {
+            internalWrite(single, 0, 0, true);
+        } catch (IOException e) {
+            thrown = e;
+        }
+        closed = true;
+
+        try {
+            if ((flags & Base64.NO_CLOSE) == 0) {
+                out.close();
+            } else {
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (thrown == null) {
+                thrown = e;
+            }
+        }
+
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
+    private void internalWrite(byte[] b, int off, int len, boolean finish) throws IOException {
+        coder.outputOffset = 0;
+        if (!coder.process(b, off, len, finish)) {
+            throw new Base64DataException("bad base-64");
+        }
+        out.write(coder.output, 0, coder.op);
+    }
+}
@@ -0,0 +1,242 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按大小分级的 {@link ByteBuffer} 池，连接建立时借出，关闭时归还
+ * <p/>
+ * 容量按 2 的幂向上取整，从 4K 到 64K 每级一个无锁队列，更大的请求直接分配、归还时丢弃。
+ * 每级保留的缓冲区个数有上限，池不会无限增长。
+ * <p/>
+ * 打开泄漏检测后会记录每个借出缓冲区的调用栈：缓冲区没有归还就被回收时打印借出的位置，
+ * 归还不是从池中借出的缓冲区、或者重复归还时打印调用栈，并且不把它放回池中。检测有额外开销，只用于调试，
+ * 可以用 -Dsmtpsim.bufferpool.debug=true 在启动时打开。
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 16;
+
+    /**
+     * 用于 socket 读写的直接缓冲区
+     */
+    public static final BufferPool DIRECT = new BufferPool(true, 256);
+    /**
+     * 需要访问底层数组的堆缓冲区
+     */
+    public static final BufferPool HEAP = new BufferPool(false, 256);
+
+    private final boolean mDirect;
+    private final int mMaxPerClass;
+    private final SizeClass[] mClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final AtomicLong mLeaks = new AtomicLong();
+
+    private volatile boolean mLeakDetection = Boolean.getBoolean("smtpsim.bufferpool.debug");
+    // 只在打开泄漏检测时使用。按 identityHashCode 分组，只持有弱引用，
+    // 否则表本身就会让没有归还的缓冲区永远不被回收
+    private final HashMap<Integer, ArrayList<LeaseTracker>> mLeased = new HashMap<Integer, ArrayList<LeaseTracker>>();
+    private final ReferenceQueue<ByteBuffer> mCollected = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * 一级的空闲缓冲区，mSize 单独计数，因为 ConcurrentLinkedQueue.size() 要遍历整个队列
+     */
+    private static class SizeClass {
+        final ConcurrentLinkedQueue<ByteBuffer> mFree = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicInteger mSize = new AtomicInteger();
+    }
+
+    /**
+     * 记录借出位置，缓冲区被回收后由 {@link #mCollected} 取得
+     */
+    private static class LeaseTracker extends WeakReference<ByteBuffer> {
+        final Throwable mAcquiredAt;
+        final int mCapacity;
+        final int mIdentity;
+
+        LeaseTracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            mAcquiredAt = new Throwable("buffer acquired here");
+            mCapacity = buffer.capacity();
+            mIdentity = System.identityHashCode(buffer);
+        }
+    }
+
+    /**
+     * @param direct      是否分配直接缓冲区
+     * @param maxPerClass 每一级最多保留的空闲缓冲区个数
+     */
+    public BufferPool(boolean direct, int maxPerClass) {
+        mDirect = direct;
+        mMaxPerClass = maxPerClass;
+        for (int i = 0; i < mClasses.length; i++) {
+            mClasses[i] = new SizeClass();
+        }
+    }
+
+    public void setLeakDetection(boolean enabled) {
+        mLeakDetection = enabled;
+    }
+
+    /**
+     * @return 容量不小于 capacity 的空缓冲区，处于写模式
+     */
+    public ByteBuffer acquire(int capacity) {
+        int index = classIndex(capacity);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = mClasses[index].mFree.poll();
+            if (buffer != null) {
+                mClasses[index].mSize.decrementAndGet();
+                buffer.clear();
+            }
+            capacity = 1 << (index + MIN_SHIFT);
+        }
+        if (buffer != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            buffer = mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        mOutstanding.incrementAndGet();
+        if (mLeakDetection) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还之后调用方不能再使用该缓冲区，null 会被忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (mLeakDetection && !untrack(buffer)) {
+            new IllegalStateException("releasing a buffer that is not leased from this pool").printStackTrace();
+            return;
+        }
+        mOutstanding.decrementAndGet();
+        int index = classIndex(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_SHIFT) || buffer.isDirect() != mDirect) {
+            return;
+        }
+        SizeClass sizeClass = mClasses[index];
+        if (sizeClass.mSize.incrementAndGet() <= mMaxPerClass) {
+            sizeClass.mFree.offer(buffer);
+        } else {
+            sizeClass.mSize.decrementAndGet();
+        }
+    }
+
+    /**
+     * 换一个至少两倍大的缓冲区，原有内容拷贝过去，原缓冲区归还
+     *
+     * @param writeMode 原缓冲区是否处于写模式，新缓冲区保持同样的模式
+     */
+    public ByteBuffer grow(ByteBuffer buffer, int minCapacity, boolean writeMode) {
+        ByteBuffer bigger = acquire(Math.max(minCapacity, buffer.capacity() * 2));
+        if (writeMode) {
+            buffer.flip();
+        }
+        bigger.put(buffer);
+        if (!writeMode) {
+            bigger.flip();
+        }
+        release(buffer);
+        return bigger;
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return 借出还没有归还的缓冲区个数
+     */
+    public int getOutstanding() {
+        return mOutstanding.get();
+    }
+
+    /**
+     * @return 泄漏检测发现的没有归还就被回收的缓冲区个数
+     */
+    public long getLeaks() {
+        reportLeaks();
+        return mLeaks.get();
+    }
+
+    private static int classIndex(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+        LeaseTracker tracker = new LeaseTracker(buffer, mCollected);
+        synchronized (mLeased) {
+            ArrayList<LeaseTracker> trackers = mLeased.get(tracker.mIdentity);
+            if (trackers == null) {
+                trackers = new ArrayList<LeaseTracker>(1);
+                mLeased.put(tracker.mIdentity, trackers);
+            }
+            trackers.add(tracker);
+        }
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        int identity = System.identityHashCode(buffer);
+        synchronized (mLeased) {
+            ArrayList<LeaseTracker> trackers = mLeased.get(identity);
+            for (int i = 0; trackers != null && i < trackers.size(); i++) {
+                LeaseTracker tracker = trackers.get(i);
+                if (tracker.get() == buffer) {
+                    // 清除后不会再进入 mCollected
+                    tracker.clear();
+                    removeTracker(trackers, i, identity);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void removeTracker(ArrayList<LeaseTracker> trackers, int index, int identity) {
+        trackers.remove(index);
+        if (trackers.isEmpty()) {
+            mLeased.remove(identity);
+        }
+    }
+
+    /**
+     * 进入 mCollected 的 tracker 没有被 {@link #untrack(ByteBuffer)} 清除过，说明缓冲区没有归还
+     */
+    private void reportLeaks() {
+        LeaseTracker tracker;
+        while ((tracker = (LeaseTracker) mCollected.poll()) != null) {
+            synchronized (mLeased) {
+                ArrayList<LeaseTracker> trackers = mLeased.get(tracker.mIdentity);
+                int index = trackers == null ? -1 : trackers.indexOf(tracker);
+                if (index >= 0) {
+                    removeTracker(trackers, index, tracker.mIdentity);
+                }
+            }
+            mLeaks.incrementAndGet();
+            mOutstanding.decrementAndGet();
+            System.err.println("BufferPool: " + tracker.mCapacity + " byte buffer was never released");
+            tracker.mAcquiredAt.printStackTrace();
+        }
+    }
+}
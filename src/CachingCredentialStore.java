@@ -0,0 +1,134 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 缓存校验结果的 {@link CredentialStore}
+ * <p/>
+ * 校验成功后按用户名记下密码的 HMAC（密钥在进程启动时随机生成，缓存中不保存密码本身），
+ * 之后同一个用户用同一个密码登录时只需要算一次 HMAC，不再执行下层昂贵的哈希。
+ * 失败的结果不缓存，猜密码的代价不会因此降低。缓存按 LRU 淘汰，条目过期后重新校验；
+ * 修改密码后应当调用 {@link #invalidate(String)}，否则旧密码在过期之前仍然有效。
+ */
+public class CachingCredentialStore implements CredentialStore {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class CacheEntry {
+        final byte[] mMac;
+        final long mExpireTime;
+
+        CacheEntry(byte[] mac, long expireTime) {
+            mMac = mac;
+            mExpireTime = expireTime;
+        }
+    }
+
+    private final CredentialStore mStore;
+    private final long mTtlMillis;
+    private final SecretKeySpec mKey;
+    private final ThreadLocal<Mac> mMac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(mKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<String, CacheEntry> mCache;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param store      实际校验的账号库
+     * @param maxEntries 最多缓存的用户数
+     * @param ttlMillis  缓存的有效期
+     */
+    public CachingCredentialStore(CredentialStore store, final int maxEntries, long ttlMillis) {
+        mStore = store;
+        mTtlMillis = ttlMillis;
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        mKey = new SecretKeySpec(key, "HmacSHA256");
+        mCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public boolean verify(String user, String password) {
+        Mac mac = mMac.get();
+        mac.update(user.getBytes(UTF_8));
+        mac.update((byte) 0);
+        byte[] digest = mac.doFinal(password.getBytes(UTF_8));
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        mLock.lock();
+        try {
+            entry = mCache.get(user);
+        } finally {
+            mLock.unlock();
+        }
+        if (entry != null && now < entry.mExpireTime && MessageDigest.isEqual(entry.mMac, digest)) {
+            mHits.incrementAndGet();
+            return true;
+        }
+
+        mMisses.incrementAndGet();
+        // 下层的哈希很慢，不能在锁内执行
+        if (!mStore.verify(user, password)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            mCache.put(user, new CacheEntry(digest, now + mTtlMillis));
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    public void invalidate(String user) {
+        mLock.lock();
+        try {
+            mCache.remove(user);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        mLock.lock();
+        try {
+            mCache.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 带缓冲的 channel 输出流
+ * <p/>
+ * 写入的内容先编码进一个可复用的 {@link ByteBuffer}，只有缓冲区满了或者显式调用
+ * {@link #flush()} 时才真正写入 channel，由调用方决定在协议的哪些同步点 flush，
+ * 这样连续的几行响应或命令可以合并成一次系统调用。
+ * 放不进缓冲区的大块数据与缓冲区中已有的内容一起用 gathering write 写出，不再拷贝。
+ * channel 必须处于阻塞模式。
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private final GatheringByteChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+    public ChannelOutputStream(GatheringByteChannel channel, int capacity) {
+        this(channel, ByteBuffer.allocate(capacity));
+    }
+
+    public ChannelOutputStream(GatheringByteChannel channel, ByteBuffer buffer) {
+        mChannel = channel;
+        mBuffer = buffer;
+        mBuffer.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            drain();
+        }
+        mBuffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= mBuffer.remaining()) {
+            mBuffer.put(b, off, len);
+        } else {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    /**
+     * 写入 src 中剩余的全部内容
+     */
+    public void write(ByteBuffer src) throws IOException {
+        if (src.remaining() <= mBuffer.remaining()) {
+            mBuffer.put(src);
+            return;
+        }
+        mBuffer.flip();
+        mGather[0] = mBuffer;
+        mGather[1] = src;
+        try {
+            while (mBuffer.hasRemaining() || src.hasRemaining()) {
+                mChannel.write(mGather);
+            }
+        } finally {
+            mGather[1] = null;
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * 按 UTF-8 编码写入一段文本，不生成中间的 byte[]
+     */
+    public void writeText(CharSequence s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (mBuffer.remaining() < 4) {
+                drain();
+            }
+            if (c < 0x80) {
+                mBuffer.put((byte) c);
+            } else if (c < 0x800) {
+                mBuffer.put((byte) (0xc0 | (c >> 6)));
+                mBuffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                mBuffer.put((byte) (0xf0 | (codePoint >> 18)));
+                mBuffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                mBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                mBuffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                mBuffer.put((byte) '?');
+            } else {
+                mBuffer.put((byte) (0xe0 | (c >> 12)));
+                mBuffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                mBuffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * @return 还在缓冲区中没有写出的字节数
+     */
+    public int pending() {
+        return mBuffer.position();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mBuffer.position() > 0) {
+            drain();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+        } finally {
+            mBuffer.clear();
+        }
+    }
+}
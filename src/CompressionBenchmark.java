@@ -0,0 +1,172 @@
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * 正文压缩的基准测试：不同的邮件组成和压缩级别下，压缩率、保存和读取一封邮件的 CPU 时间
+ * <p/>
+ * 默认直接构造 {@link MailBody}，只测压缩本身；参数为 mailbox 时再经过 {@link MailBox} 完整投递一遍，
+ * 这时全文索引占了大部分时间。每组重复 5 次，去掉第一次预热，取最快的一次。
+ * <pre>
+ * java -cp out CompressionBenchmark [mailbox]
+ * </pre>
+ */
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = ("the of and to in is for on that with as was by it this be are from at or "
+            + "an have not which your our we will can more all new has one about may other if their you been").split(" ");
+    private static final int[] LEVELS = {0, 1, 3, 6, 9};
+    private static final int MIN_BYTES = 1024;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        boolean mailbox = args.length > 0 && "mailbox".equals(args[0]);
+        String[] mixes = {"text-1k", "text-8k", "html-40k", "mixed"};
+        for (String mix : mixes) {
+            Random random = new Random(1);
+            int count = "html-40k".equals(mix) ? 2000 : "mixed".equals(mix) ? 3000 : 10000;
+            ArrayList<MailContent> mails = new ArrayList<MailContent>();
+            for (int i = 0; i < count; i++) {
+                mails.add(mail(body(mix, random), i));
+            }
+            benchBodies(mix, mails);
+            if (mailbox) {
+                benchMailBox(mix, mails);
+            }
+        }
+    }
+
+    private static void benchBodies(String mix, ArrayList<MailContent> mails) {
+        int count = mails.size();
+        long total = 0;
+        for (MailContent mail : mails) {
+            total += mail.raw.length - mail.mime.mBodyStart;
+        }
+        for (int level : LEVELS) {
+            long bestStore = Long.MAX_VALUE;
+            long bestRead = Long.MAX_VALUE;
+            long stored = 0;
+            for (int run = 0; run < RUNS; run++) {
+                MailBody[] bodies = new MailBody[count];
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    MailContent mail = mails.get(i);
+                    bodies[i] = new MailBody(mail.raw, mail.mime.mBodyStart, null, level, MIN_BYTES);
+                }
+                long store = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (MailBody body : bodies) {
+                    body.copyTo(new byte[body.size()], 0);
+                }
+                long read = System.nanoTime() - start;
+                stored = 0;
+                for (MailBody body : bodies) {
+                    stored += body.storedSize();
+                }
+                if (run > 0) {
+                    bestStore = Math.min(bestStore, store);
+                    bestRead = Math.min(bestRead, read);
+                }
+            }
+            System.out.printf("body     %-9s level=%d  avg=%6.1fKB  ratio=%.2f  store=%7.1fus/mail  read=%6.1fus/mail%n",
+                    mix, level, total / 1e3 / count, (double) total / stored,
+                    bestStore / 1e3 / count, bestRead / 1e3 / count);
+        }
+    }
+
+    private static void benchMailBox(String mix, ArrayList<MailContent> mails) {
+        int count = mails.size();
+        for (int level : LEVELS) {
+            long bestDeliver = Long.MAX_VALUE;
+            long bestRead = Long.MAX_VALUE;
+            MailBox mailBox = null;
+            for (int run = 0; run < RUNS; run++) {
+                mailBox = new MailBox();
+                mailBox.setCompression(level, MIN_BYTES);
+                long start = System.nanoTime();
+                for (MailContent mail : mails) {
+                    mailBox.deliverMail(mail);
+                }
+                long deliver = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (MailRecord record : mailBox.getAllRecords()) {
+                    record.getContent();
+                }
+                long read = System.nanoTime() - start;
+                if (run > 0) {
+                    bestDeliver = Math.min(bestDeliver, deliver);
+                    bestRead = Math.min(bestRead, read);
+                }
+            }
+            System.out.printf("mailbox  %-9s level=%d  body=%6.1fMB  stored=%6.1fMB  deliver=%7.1fus/mail  read=%6.1fus/mail%n",
+                    mix, level, mailBox.getBodyBytes() / 1e6, mailBox.getStoredBodyBytes() / 1e6,
+                    bestDeliver / 1e3 / count, bestRead / 1e3 / count);
+        }
+    }
+
+    /**
+     * mixed 中 60% 是纯文本，30% 是 HTML，10% 带 base64 编码的附件
+     */
+    private static String body(String mix, Random random) {
+        if ("text-1k".equals(mix)) {
+            return text(random, 200 + random.nextInt(1600));
+        }
+        if ("text-8k".equals(mix)) {
+            return text(random, 4000 + random.nextInt(8000));
+        }
+        if ("html-40k".equals(mix)) {
+            return html(random, 20000 + random.nextInt(40000));
+        }
+        int kind = random.nextInt(10);
+        if (kind < 6) {
+            return text(random, 200 + random.nextInt(3000));
+        }
+        if (kind < 9) {
+            return html(random, 10000 + random.nextInt(30000));
+        }
+        return attachment(random, 50000 + random.nextInt(150000));
+    }
+
+    private static String text(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 100);
+        while (sb.length() < size) {
+            for (int i = 0; i < 12; i++) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            sb.append(random.nextInt(100000)).append(".\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static String html(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 200);
+        sb.append("<html><body>\r\n");
+        while (sb.length() < size) {
+            sb.append("<tr><td class=\"item\" style=\"padding:4px;color:#333\"><a href=\"https://example.com/p/")
+                    .append(random.nextInt(1000000)).append("\">").append(text(random, 60).trim())
+                    .append("</a></td></tr>\r\n");
+        }
+        return sb.append("</body></html>").toString();
+    }
+
+    private static String attachment(Random random, int size) {
+        byte[] data = new byte[size * 3 / 4];
+        random.nextBytes(data);
+        return "--b\r\nContent-Type: text/plain\r\n\r\n" + text(random, 800)
+                + "\r\n--b\r\nContent-Type: application/octet-stream\r\nContent-Transfer-Encoding: base64\r\n\r\n"
+                + Base64.encodeToString(data, Base64.CRLF) + "\r\n--b--\r\n";
+    }
+
+    private static MailContent mail(String body, int i) throws UnsupportedEncodingException {
+        MailContent mail = new MailContent();
+        mail.from = "a@b.com";
+        mail.to = "r" + i + "@d.com";
+        mail.subject = "s" + i;
+        mail.content = "From: a@b.com\r\nTo: " + mail.to + "\r\nSubject: " + mail.subject + "\r\n\r\n" + body;
+        mail.raw = mail.content.getBytes("UTF-8");
+        MimeParser parser = new MimeParser();
+        parser.feed(mail.raw, 0, mail.raw.length);
+        mail.mime = parser.finish(mail.raw.length);
+        return mail;
+    }
+}
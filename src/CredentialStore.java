@@ -0,0 +1,12 @@
+/**
+ * SMTP AUTH 使用的账号密码校验
+ */
+public interface CredentialStore {
+
+    /**
+     * 可能被多个连接的工作线程同时调用
+     *
+     * @return 用户存在并且密码正确
+     */
+    boolean verify(String user, String password);
+}
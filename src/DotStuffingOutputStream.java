@@ -0,0 +1,74 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 用于 DATA 命令的输出流
+ * <p/>
+ * 写入的内容原样转发，同时把行首的 '.' 加倍，把单独的 LF 补成 CRLF。
+ * 写完后调用 {@link #finish()} 补上结束符 &lt;CR&gt;&lt;LF&gt;.&lt;CR&gt;&lt;LF&gt;。
+ * 内容按段转发，不逐字节写入下层流，也不做额外的缓冲。
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+
+    private boolean mLineStart = true;
+    private byte mPrev = '\n';
+    private long mCount = 0;
+
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int segment = off;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '\n' && mPrev != '\r') {
+                out.write(b, segment, i - segment);
+                out.write('\r');
+                segment = i;
+            } else if (c == '.' && mLineStart) {
+                // 这个 '.' 会随下一段再写一次
+                out.write(b, segment, i - segment + 1);
+                segment = i;
+            }
+            mLineStart = c == '\n';
+            mPrev = c;
+        }
+        out.write(b, segment, end - segment);
+        mCount += len;
+    }
+
+    /**
+     * 写入结束符并 flush，不关闭下层流
+     */
+    public void finish() throws IOException {
+        if (!mLineStart) {
+            // 以单独的 CR 结尾时只补 LF，不能变成 CRCRLF
+            if (mPrev != '\r') {
+                out.write('\r');
+            }
+            out.write('\n');
+        }
+        out.write('.');
+        out.write('\r');
+        out.write('\n');
+        out.flush();
+        mLineStart = true;
+        mPrev = '\n';
+    }
+
+    /**
+     * @return 写入的原始字节数，不含转义和结束符
+     */
+    public long getCount() {
+        return mCount;
+    }
+}
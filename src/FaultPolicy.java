@@ -0,0 +1,210 @@
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 故障注入策略，让 {@link SMTPServer} 按需表现得像一台不稳定的 MX，用来测试发信端的重试逻辑
+ * <p/>
+ * 策略由若干 {@link Rule} 组成，每条命令按添加顺序找第一条匹配的规则，按它的设置注入：
+ * 推迟发出响应、以随机的比例返回 4xx/5xx、断开连接，以及限制 DATA/BDAT 内容的接收速度。
+ * DATA/BDAT 的错误和断开发生在邮件内容接收完之后，也就是代替对整封邮件的确认。
+ * QUIT 和 STARTTLS 不受影响。
+ * <p/>
+ * 推迟的响应先留在会话的输出缓冲区中，由定时任务到期后发出，会话线程照常去读下一条命令，
+ * 不会为了等待而占住线程。延迟的断开同样由定时任务关闭连接。
+ * <pre>
+ * server.setFaultPolicy(new FaultPolicy()
+ *         .addRule(new FaultPolicy.Rule("RCPT", ".*@slow\\.example\\.com").delay(5000, 5000))
+ *         .addRule(new FaultPolicy.Rule("DATA", null).failures(0.1, 0.01).dataBandwidth(64 * 1024)));
+ * </pre>
+ */
+public class FaultPolicy {
+
+    public static class Rule {
+        private final String mCommand;
+        private final Pattern mRecipient;
+
+        private long mMinDelay = 0;
+        private long mMaxDelay = 0;
+        private double mTempFailureRate = 0;
+        private double mPermFailureRate = 0;
+        private double mDisconnectRate = 0;
+        private int mDataBandwidth = 0;
+
+        /**
+         * @param command          命令名，如 "RCPT"，null 或 "*" 表示所有命令
+         * @param recipientPattern 收件人地址（小写）要完整匹配的正则表达式，null 表示不限。
+         *                         RCPT 匹配命令中的地址，其他命令匹配当前邮件最后一个收件人，还没有收件人时不匹配
+         */
+        public Rule(String command, String recipientPattern) {
+            mCommand = command == null || "*".equals(command) ? null : command.toUpperCase();
+            mRecipient = recipientPattern == null ? null : Pattern.compile(recipientPattern, Pattern.CASE_INSENSITIVE);
+        }
+
+        /**
+         * 推迟发出响应，每次在 [minMillis, maxMillis] 之间随机取值
+         */
+        public Rule delay(long minMillis, long maxMillis) {
+            if (minMillis < 0 || maxMillis < minMillis) {
+                throw new IllegalArgumentException("bad delay range: " + minMillis + ", " + maxMillis);
+            }
+            mMinDelay = minMillis;
+            mMaxDelay = maxMillis;
+            return this;
+        }
+
+        /**
+         * @param tempRate 以 451 拒绝的比例
+         * @param permRate 以 550（MAIL/RCPT）或 554（其他命令）拒绝的比例
+         */
+        public Rule failures(double tempRate, double permRate) {
+            mTempFailureRate = tempRate;
+            mPermFailureRate = permRate;
+            return this;
+        }
+
+        /**
+         * 不发响应直接断开连接的比例，同时设置了延迟时在延迟之后断开
+         */
+        public Rule disconnects(double rate) {
+            mDisconnectRate = rate;
+            return this;
+        }
+
+        /**
+         * 接收 DATA/BDAT 内容的速度上限，单位字节每秒，0 表示不限制
+         */
+        public Rule dataBandwidth(int bytesPerSecond) {
+            mDataBandwidth = bytesPerSecond;
+            return this;
+        }
+
+        boolean matches(String command, String recipient) {
+            if (mCommand != null && !mCommand.equals(command)) {
+                return false;
+            }
+            return mRecipient == null || (recipient != null && mRecipient.matcher(recipient).matches());
+        }
+    }
+
+    /**
+     * 对一条命令注入的故障
+     */
+    /* package */ static class Fault {
+        final long delay;
+        // 代替正常响应的错误码，0 表示不替换
+        final int reply;
+        final boolean disconnect;
+        final int dataBandwidth;
+
+        Fault(long delay, int reply, boolean disconnect, int dataBandwidth) {
+            this.delay = delay;
+            this.reply = reply;
+            this.disconnect = disconnect;
+            this.dataBandwidth = dataBandwidth;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Rule> mRules = new CopyOnWriteArrayList<Rule>();
+    private final Random mRandom = new Random();
+    // 延迟需要比超时检查精细得多的定时
+    private final TimingWheel mTimer = new TimingWheel("FaultPolicy-timer", 10, 1024);
+
+    private final AtomicLong mDelayed = new AtomicLong();
+    private final AtomicLong mTempFailures = new AtomicLong();
+    private final AtomicLong mPermFailures = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+
+    /**
+     * 规则可以在服务器运行时添加，对之后的命令生效
+     */
+    public FaultPolicy addRule(Rule rule) {
+        mRules.add(rule);
+        return this;
+    }
+
+    public void clearRules() {
+        mRules.clear();
+    }
+
+    /**
+     * 固定随机数种子，同样的命令序列得到同样的故障
+     */
+    public FaultPolicy setSeed(long seed) {
+        mRandom.setSeed(seed);
+        return this;
+    }
+
+    public long getDelayedReplies() {
+        return mDelayed.get();
+    }
+
+    public long getTempFailures() {
+        return mTempFailures.get();
+    }
+
+    public long getPermFailures() {
+        return mPermFailures.get();
+    }
+
+    public long getDisconnects() {
+        return mDisconnects.get();
+    }
+
+    /**
+     * 停止定时线程，之后不能再使用这个策略
+     */
+    public void stop() {
+        mTimer.stop();
+    }
+
+    /**
+     * @param command   大写的命令名
+     * @param recipient 收件人地址，没有时为 null
+     * @return 要注入的故障，没有匹配的规则或者这次没有抽中时返回 null
+     */
+    /* package */ Fault decide(String command, String recipient) {
+        Rule rule = null;
+        for (Rule r : mRules) {
+            if (r.matches(command, recipient)) {
+                rule = r;
+                break;
+            }
+        }
+        if (rule == null) {
+            return null;
+        }
+
+        long delay = rule.mMinDelay;
+        if (rule.mMaxDelay > rule.mMinDelay) {
+            delay += (long) (mRandom.nextDouble() * (rule.mMaxDelay - rule.mMinDelay + 1));
+        }
+        // 断开、永久错误、临时错误共用一次抽签，比例之和超过 1 时靠前的优先
+        double p = mRandom.nextDouble();
+        boolean disconnect = false;
+        int reply = 0;
+        if (p < rule.mDisconnectRate) {
+            disconnect = true;
+            mDisconnects.incrementAndGet();
+        } else if ((p -= rule.mDisconnectRate) < rule.mPermFailureRate) {
+            reply = "MAIL".equals(command) || "RCPT".equals(command)
+                    ? SMTPDefine.MAILBOX_UNAVAILABLE : SMTPDefine.TRANSACTION_FAILED;
+            mPermFailures.incrementAndGet();
+        } else if (p - rule.mPermFailureRate < rule.mTempFailureRate) {
+            reply = SMTPDefine.LOCAL_ERROR;
+            mTempFailures.incrementAndGet();
+        }
+        if (delay == 0 && reply == 0 && !disconnect && rule.mDataBandwidth == 0) {
+            return null;
+        }
+        if (delay > 0 && !disconnect) {
+            mDelayed.incrementAndGet();
+        }
+        return new Fault(delay, reply, disconnect, rule.mDataBandwidth);
+    }
+
+    /* package */ void schedule(Runnable task, long delayMillis) {
+        mTimer.schedule(task, delayMillis);
+    }
+}
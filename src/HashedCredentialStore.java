@@ -0,0 +1,146 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 只保存加盐哈希的账号库
+ * <p/>
+ * 密码用 PBKDF2 计算哈希，每个账号有自己的盐和迭代次数。可以从文本文件加载和保存，
+ * 每行一个账号：user:iterations:salt:hash，salt 和 hash 为 Base64，'#' 开头的行是注释。
+ * PBKDF2 故意算得很慢，账号多、连接频繁时应当再包一层 {@link CachingCredentialStore}。
+ */
+public class HashedCredentialStore implements CredentialStore {
+
+    public static final int DEFAULT_ITERATIONS = 20000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        final int mIterations;
+        final byte[] mSalt;
+        final byte[] mHash;
+
+        Entry(int iterations, byte[] salt, byte[] hash) {
+            mIterations = iterations;
+            mSalt = salt;
+            mHash = hash;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private final byte[] mDummySalt = new byte[SALT_BYTES];
+    private volatile int mIterations = DEFAULT_ITERATIONS;
+
+    public HashedCredentialStore() {
+        mRandom.nextBytes(mDummySalt);
+    }
+
+    public static HashedCredentialStore load(File file) throws IOException {
+        HashedCredentialStore store = new HashedCredentialStore();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(":");
+                if (fields.length != 4) {
+                    throw new IOException(file + ":" + lineNumber + ": expected user:iterations:salt:hash");
+                }
+                try {
+                    store.mEntries.put(fields[0], new Entry(Integer.parseInt(fields[1]),
+                            Base64.decode(fields[2], Base64.DEFAULT), Base64.decode(fields[3], Base64.DEFAULT)));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return store;
+    }
+
+    /**
+     * 先写入临时文件再替换，写到一半出错不会破坏原来的文件
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF_8));
+        try {
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(e.getKey() + ":" + entry.mIterations + ":"
+                        + Base64.encodeToString(entry.mSalt, Base64.NO_WRAP) + ":"
+                        + Base64.encodeToString(entry.mHash, Base64.NO_WRAP) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("can't replace " + file);
+        }
+    }
+
+    /**
+     * 之后新设置的密码使用的迭代次数，已有的账号不受影响
+     */
+    public void setIterations(int iterations) {
+        mIterations = iterations;
+    }
+
+    /**
+     * 添加账号或修改密码
+     */
+    public void setPassword(String user, String password) {
+        if (user.isEmpty() || user.indexOf(':') >= 0 || user.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("invalid user name: " + user);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        mRandom.nextBytes(salt);
+        int iterations = mIterations;
+        mEntries.put(user, new Entry(iterations, salt, hash(password, salt, iterations)));
+    }
+
+    public boolean removeUser(String user) {
+        return mEntries.remove(user) != null;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public boolean verify(String user, String password) {
+        Entry entry = mEntries.get(user);
+        if (entry == null) {
+            // 用户不存在时同样计算一次，不让响应时间暴露用户名是否存在
+            hash(password, mDummySalt, mIterations);
+            return false;
+        }
+        return MessageDigest.isEqual(hash(password, entry.mSalt, entry.mIterations), entry.mHash);
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数直方图
+ * <p/>
+ * 第 i 个桶统计 [2^(i-1), 2^i) 范围内的值（第 0 个桶只有 0），
+ * 记录一个值只需要几次原子加，不分配对象。百分位数按桶的上界估计，误差在 2 倍以内。
+ * <p/>
+ * 为了让读到的各桶计数和总和一致，计数分两组交替写入。读取时把写入切换到另一组，
+ * 等旧的一组上已经开始的写入结束后把它并入累计值，读取的是累计值。
+ * 写入从不等待，读取只等待切换之前已经开始的几次写入，彼此之间由 this 锁串行。
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray[] mBuckets = {new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS)};
+    private final AtomicLong[] mSums = {new AtomicLong(), new AtomicLong()};
+    private final AtomicLong[] mFinished = {new AtomicLong(), new AtomicLong()};
+    // 最高位是当前写入的组，其余是这一组开始写入的次数
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // 已经并入的计数，只在持有 this 锁时访问
+    private final long[] mTotalBuckets = new long[BUCKETS];
+    private long mTotalSum = 0;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int phase = mStarted.getAndIncrement() < 0 ? 1 : 0;
+        mBuckets[phase].incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mSums[phase].addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // 被其他线程抢先更新了，重试
+        }
+        mFinished[phase].incrementAndGet();
+    }
+
+    public long getCount() {
+        long[] buckets = new long[BUCKETS];
+        snapshot(buckets);
+        long count = 0;
+        for (long n : buckets) {
+            count += n;
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return snapshot(new long[BUCKETS]);
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long[] buckets = new long[BUCKETS];
+        long sum = snapshot(buckets);
+        long count = 0;
+        for (long n : buckets) {
+            count += n;
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param q 0 到 1 之间
+     * @return 第 q 分位数所在桶的上界，不会超过记录到的最大值
+     */
+    public long getPercentile(double q) {
+        long[] buckets = new long[BUCKETS];
+        snapshot(buckets);
+        long total = 0;
+        for (long n : buckets) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * 以 Prometheus 文本格式写出，桶是累计计数
+     *
+     * @param labels 形如 verb="MAIL" 的标签，没有则为 null
+     */
+    public void writeText(StringBuilder sb, String name, String labels) {
+        long[] buckets = new long[BUCKETS];
+        long sum = snapshot(buckets);
+        String prefix = labels == null ? "" : labels + ",";
+        long cumulative = 0;
+        int last = BUCKETS - 1;
+        while (last > 0 && buckets[last] == 0) {
+            last--;
+        }
+        for (int i = 0; i <= last; i++) {
+            cumulative += buckets[i];
+            sb.append(name).append("_bucket{").append(prefix).append("le=\"").append(upperBound(i)).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        sb.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(suffix).append(' ').append(sum).append('\n');
+        sb.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+
+    /**
+     * 把调用之前完成的所有记录并入累计值，再把各桶的累计计数读入 buckets
+     *
+     * @return 与各桶计数一致的总和
+     */
+    private synchronized long snapshot(long[] buckets) {
+        long started = mStarted.get();
+        int old = started < 0 ? 1 : 0;
+        int next = 1 - old;
+        // 另一组上次读取时已经清空，没有写入
+        mFinished[next].set(0);
+        started = mStarted.getAndSet(next == 1 ? Long.MIN_VALUE : 0) & Long.MAX_VALUE;
+        while (mFinished[old].get() != started) {
+            // 切换之前开始的写入还没有结束
+            Thread.yield();
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            mTotalBuckets[i] += mBuckets[old].getAndSet(i, 0);
+        }
+        mTotalSum += mSums[old].getAndSet(0);
+        System.arraycopy(mTotalBuckets, 0, buckets, 0, BUCKETS);
+        return mTotalSum;
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
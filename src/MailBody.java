@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 收件箱中邮件的正文，即顶层头部之后的部分
+ * <p/>
+ * 群发的邮件每份的头部（To、Message-ID 等）各不相同，正文却完全一样，
+ * 所以 {@link MailBox} 按正文的 SHA-256 查找已有的正文，内容相同时多封邮件共用一个对象，
+ * 按引用计数在最后一封被淘汰时释放。哈希只用于查找，命中后还会逐字节比较。
+ * <p/>
+ * 正文可以用 {@link Deflater} 压缩保存，读取时才解压。压缩后没有变小的正文按原样保存，
+ * 所以保存的字节数小于正文长度就说明是压缩过的，快照中也据此区分。
+ */
+public class MailBody {
+
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    // 保存的内容，读模式。堆上的数组，或者快照文件中映射的一段
+    private final ByteBuffer mData;
+    // 正文的实际长度
+    private final int mSize;
+    // 在收件箱的正文表中的键，从快照恢复的正文为 null
+    final ByteBuffer mKey;
+    // 引用这份正文的邮件数，只在持有收件箱锁时修改
+    int mRefs = 0;
+
+    /**
+     * @param content  完整的邮件内容，正文从 bodyStart 开始
+     * @param level    压缩级别，{@link Deflater#NO_COMPRESSION} 表示不压缩
+     * @param minBytes 正文不小于这个长度时才压缩
+     */
+    MailBody(byte[] content, int bodyStart, ByteBuffer key, int level, int minBytes) {
+        mSize = content.length - bodyStart;
+        mKey = key;
+        byte[] compressed = null;
+        if (level != Deflater.NO_COMPRESSION && mSize >= minBytes) {
+            compressed = deflate(content, bodyStart, mSize, level);
+        }
+        if (compressed != null) {
+            mData = ByteBuffer.wrap(compressed);
+        } else {
+            byte[] data = new byte[mSize];
+            System.arraycopy(content, bodyStart, data, 0, mSize);
+            mData = ByteBuffer.wrap(data);
+        }
+    }
+
+    /**
+     * 从快照中恢复的正文
+     *
+     * @param stored 保存的内容，长度小于 size 时是压缩过的
+     */
+    MailBody(ByteBuffer stored, int size) {
+        mData = stored;
+        mSize = size;
+        mKey = null;
+    }
+
+    /**
+     * @return 正文的实际长度
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return 实际保存的字节数
+     */
+    public int storedSize() {
+        return mData.remaining();
+    }
+
+    public boolean isCompressed() {
+        return mData.remaining() < mSize;
+    }
+
+    /**
+     * 把正文解压到 dst 中 offset 开始的位置
+     */
+    void copyTo(byte[] dst, int offset) {
+        if (!isCompressed()) {
+            mData.duplicate().get(dst, offset, mSize);
+            return;
+        }
+        Inflater inflater = newInflater();
+        try {
+            int n = 0;
+            while (n < mSize) {
+                int inflated = inflater.inflate(dst, offset + n, mSize - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != mSize) {
+                throw new IllegalStateException("mail body is truncated, " + n + " of " + mSize + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("mail body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    boolean contentEquals(byte[] content, int bodyStart) {
+        if (content.length - bodyStart != mSize) {
+            return false;
+        }
+        if (!isCompressed()) {
+            ByteBuffer data = mData.duplicate();
+            for (int i = 0; i < mSize; i++) {
+                if (data.get() != content[bodyStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // 分段解压比较，不需要一次分配整个正文
+        Inflater inflater = newInflater();
+        try {
+            byte[] chunk = new byte[8192];
+            int n = 0;
+            while (n < mSize) {
+                int inflated = inflater.inflate(chunk, 0, Math.min(chunk.length, mSize - n));
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    return false;
+                }
+                for (int i = 0; i < inflated; i++) {
+                    if (chunk[i] != content[bodyStart + n + i]) {
+                        return false;
+                    }
+                }
+                n += inflated;
+            }
+            return true;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 原样写出保存的内容，不解压
+     *
+     * @return 写出的字节数
+     */
+    int writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer data = mData.duplicate();
+        int size = data.remaining();
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        return size;
+    }
+
+    private Inflater newInflater() {
+        Inflater inflater = new Inflater();
+        if (mData.hasArray()) {
+            inflater.setInput(mData.array(), mData.arrayOffset() + mData.position(), mData.remaining());
+        } else {
+            // 映射的正文要先读到堆上才能交给 Inflater
+            byte[] stored = new byte[mData.remaining()];
+            mData.duplicate().get(stored);
+            inflater.setInput(stored);
+        }
+        return inflater;
+    }
+
+    /**
+     * @return 压缩后的内容，没有变小时返回 null
+     */
+    private static byte[] deflate(byte[] data, int offset, int len, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, offset, len);
+            deflater.finish();
+            // 只接受比原文小的结果，输出缓冲区满了就说明没有变小
+            byte[] out = new byte[Math.max(len - 1, 0)];
+            int n = 0;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] result = new byte[n];
+            System.arraycopy(out, 0, result, 0, n);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] digest(byte[] data, int offset, int len) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(data, offset, len);
+        return digest.digest();
+    }
+}
@@ -1,5 +1,21 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 /**
  * Created by Noisyfox on 2015/4/1.
@@ -8,21 +24,98 @@ import java.util.concurrent.locks.ReentrantLock;
 public class MailBox {
 
     private final ReentrantLock mMailBoxLock = new ReentrantLock();
-    private final ArrayList<MailContent> mAllMails = new ArrayList<MailContent>();
     private final ArrayList<OnMailReceiveListener> mListeners = new ArrayList<OnMailReceiveListener>();
+    private final MailIndex mIndex = new MailIndex();
+    // 保证接收时间单调不减，按时间范围查询时才能二分定位 id 区间
+    private long mLastReceiveTime = 0;
+
+    // 所有邮件按 id 顺序存放在环形数组中，淘汰最早的邮件只需移动表头
+    private MailRecord[] mRing = new MailRecord[16];
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mFirstId = 0;
+    private long mTotalBytes = 0;
+
+    // 保留策略，0 表示不限制
+    private int mMaxCount = 0;
+    private long mMaxBytes = 0;
+    private long mMaxAge = 0;
+
+    private File mSpillFile = null;
+    private ExecutorService mSpillExecutor = null;
+    private final AtomicInteger mPendingSpills = new AtomicInteger();
+
+    private final AtomicLong mEvictedByCount = new AtomicLong();
+    private final AtomicLong mEvictedByBytes = new AtomicLong();
+    private final AtomicLong mEvictedByAge = new AtomicLong();
+    private final AtomicLong mSpilled = new AtomicLong();
+
+    private MailSnapshot mSnapshot = null;
+    private ScheduledExecutorService mSnapshotExecutor = null;
+    private ScheduledFuture<?> mSnapshotTask = null;
+    // id 小于 mRestoredEnd 的邮件是从快照恢复的，单独建索引：加载时只索引 from/to/subject，
+    // 正文由快照线程在后台按 id 顺序补上，已经补到 mRestoredIndexedUpTo
+    private MailIndex mRestoredIndex = null;
+    private int mRestoredEnd = 0;
+    private int mRestoredIndexedUpTo = 0;
+    // 内容相同的正文只保存一份，键是正文的摘要。从快照恢复的邮件的正文不在表中，但计入下面的统计
+    private final HashMap<ByteBuffer, MailBody> mBodies = new HashMap<ByteBuffer, MailBody>();
+    // 所有邮件的正文长度之和、去重后的正文长度之和、实际保存的字节数
+    private long mBodyBytes = 0;
+    private long mUniqueBodyBytes = 0;
+    private long mStoredBodyBytes = 0;
+    private int mStoredBodies = 0;
+    private volatile int mCompressionLevel = Deflater.NO_COMPRESSION;
+    private volatile int mCompressionMinBytes = 0;
+    // 投递耗时，单位微秒，包括等待收件箱锁和执行回调的时间
+    private final Histogram mDeliveryLatency = new Histogram();
 
     @SuppressWarnings("unchecked")
     public void deliverMail(MailContent mail) {
+        long start = System.nanoTime();
         mail = mail.clone();
+        // 编码和计算摘要不需要持有锁
+        byte[] content = mail.raw != null ? mail.raw : MailRecord.encode(mail.content);
+        // 原始字节已经存入记录，回调拿到的浅拷贝不再引用它
+        mail.raw = null;
+        int bodyStart = mail.mime == null ? 0 : Math.min(Math.max(mail.mime.mBodyStart, 0), content.length);
+        byte[] digest = mail.bodyDigest;
+        if (digest == null) {
+            digest = MailBody.digest(content, bodyStart, content.length - bodyStart);
+        }
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        MailBody body;
+        mMailBoxLock.lock();
+        try {
+            body = mBodies.get(key);
+        } finally {
+            mMailBoxLock.unlock();
+        }
+        // 压缩过的正文要解压才能比较，和新正文的压缩一样都在锁外进行
+        if (body != null && !body.contentEquals(content, bodyStart)) {
+            body = null;
+        }
+        if (body == null) {
+            body = new MailBody(content, bodyStart, key, mCompressionLevel, mCompressionMinBytes);
+        }
         mMailBoxLock.lock();
         try {
-            mAllMails.add(mail);
+            addBody(body);
+            int id = mFirstId + mCount;
+            long now = Math.max(System.currentTimeMillis(), mLastReceiveTime);
+            mLastReceiveTime = now;
+            // 收件箱只保存紧凑形式，回调的 mail 只是调用方传入内容的浅拷贝
+            MailRecord record = new MailRecord(id, now, mail, content, body);
+            append(record);
+            mIndex.add(id, mail);
+            evict(now);
             ArrayList<OnMailReceiveListener> listenerClone = (ArrayList<OnMailReceiveListener>) mListeners.clone();
             for (OnMailReceiveListener listener : listenerClone) {
                 listener.onMailReceived(mail);
             }
         } finally {
             mMailBoxLock.unlock();
+            mDeliveryLatency.record((System.nanoTime() - start) / 1000);
         }
     }
 
@@ -34,13 +127,586 @@ public class MailBox {
         mListeners.add(listener);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * 设置保留策略，超出任一限制时从最早的邮件开始淘汰
+     *
+     * @param maxCount 最多保留的邮件数，0 表示不限制
+     * @param maxBytes 最多保留的邮件总字节数，0 表示不限制
+     * @param maxAge   邮件最长保留时间，单位毫秒，0 表示不限制
+     */
+    public void setRetention(int maxCount, long maxBytes, long maxAge) {
+        mMailBoxLock.lock();
+        try {
+            mMaxCount = maxCount;
+            mMaxBytes = maxBytes;
+            mMaxAge = maxAge;
+            evict(System.currentTimeMillis());
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * 设置正文的压缩，只对之后收到的邮件生效，已经保存的正文保持原样
+     *
+     * @param level    {@link Deflater} 的压缩级别 1~9，{@link Deflater#NO_COMPRESSION} 表示不压缩
+     * @param minBytes 正文小于这个长度时不压缩，压缩很短的内容得不偿失
+     */
+    public void setCompression(int level, int minBytes) {
+        if (level != Deflater.NO_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("bad compression level " + level);
+        }
+        mCompressionLevel = level;
+        mCompressionMinBytes = minBytes;
+    }
+
+    /**
+     * 被淘汰的邮件以 mbox 格式追加写入该文件，null 表示直接丢弃。
+     * 写文件在单独的线程中进行，不会阻塞投递。
+     */
+    public void setSpillFile(File spillFile) {
+        mMailBoxLock.lock();
+        try {
+            mSpillFile = spillFile;
+            if (spillFile != null && mSpillExecutor == null) {
+                mSpillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "MailBox-spill");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * 从 dir 中的快照恢复收件箱，之后每隔 intervalMillis 写一次快照。必须在开始接收邮件之前调用。
+     * 恢复时只读取元数据，正文在第一次访问时才读入；恢复的邮件按正文查找要等后台索引完成后才完整。
+     * 上次快照之后收到的邮件在进程退出时会丢失，需要时在退出前调用 {@link #snapshot()}。
+     *
+     * @param intervalMillis 0 表示不定期写快照
+     * @return 恢复的邮件数
+     */
+    public int setSnapshot(File dir, long intervalMillis) throws IOException {
+        // 先检查一次，不满足条件时不必打开快照文件
+        mMailBoxLock.lock();
+        try {
+            checkSnapshotUnset();
+        } finally {
+            mMailBoxLock.unlock();
+        }
+        MailSnapshot snapshot = new MailSnapshot(dir);
+        ArrayList<MailRecord> records = snapshot.load();
+        mMailBoxLock.lock();
+        try {
+            try {
+                // 加载期间可能已经有邮件投递进来
+                checkSnapshotUnset();
+            } catch (IllegalStateException e) {
+                snapshot.close();
+                throw e;
+            }
+            mSnapshot = snapshot;
+            if (!records.isEmpty()) {
+                mFirstId = records.get(0).getId();
+                mRestoredIndex = new MailIndex();
+                for (MailRecord record : records) {
+                    append(record);
+                    retain(record.getBody());
+                    MailContent headers = new MailContent();
+                    headers.from = record.getFrom();
+                    headers.to = record.getTo();
+                    headers.subject = record.getSubject();
+                    mRestoredIndex.add(record.getId(), headers);
+                    mLastReceiveTime = Math.max(mLastReceiveTime, record.getReceiveTime());
+                }
+                mRestoredEnd = mFirstId + mCount;
+                mRestoredIndexedUpTo = mFirstId;
+            }
+            mSnapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MailBox-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if (mRestoredIndex != null) {
+                mSnapshotExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        indexRestored();
+                    }
+                });
+            }
+            if (intervalMillis > 0) {
+                mSnapshotTask = mSnapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            snapshot();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+            evict(System.currentTimeMillis());
+            return records.size();
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    private void checkSnapshotUnset() {
+        if (mCount > 0 || mSnapshot != null) {
+            throw new IllegalStateException("snapshot must be set on an empty mailbox");
+        }
+    }
+
+    /**
+     * 立即写一次快照，没有设置快照目录时什么都不做。
+     * 持有收件箱锁的时间只够拷贝邮件列表，写文件不阻塞投递
+     */
+    public void snapshot() throws IOException {
+        MailSnapshot snapshot;
+        int firstId;
+        MailRecord[] records;
+        mMailBoxLock.lock();
+        try {
+            snapshot = mSnapshot;
+            if (snapshot == null) {
+                return;
+            }
+            evict(System.currentTimeMillis());
+            firstId = mFirstId;
+            records = new MailRecord[mCount];
+            for (int i = 0; i < mCount; i++) {
+                records[i] = get(i);
+            }
+        } finally {
+            mMailBoxLock.unlock();
+        }
+        snapshot.write(firstId, records);
+    }
+
+    /**
+     * 停止定期写快照，并写最后一次。恢复的邮件还没有索引完时，后台索引会继续进行直到完成
+     */
+    public void closeSnapshot() throws IOException {
+        ScheduledExecutorService executor;
+        mMailBoxLock.lock();
+        try {
+            executor = mSnapshotExecutor;
+            mSnapshotExecutor = null;
+            if (mSnapshotTask != null) {
+                mSnapshotTask.cancel(false);
+                mSnapshotTask = null;
+            }
+        } finally {
+            mMailBoxLock.unlock();
+        }
+        if (executor != null) {
+            // 不能中断快照线程，FileChannel 被中断时会关闭。正在写的快照由 MailSnapshot 排在前面
+            executor.shutdown();
+            snapshot();
+        }
+    }
+
+    /**
+     * 只在快照线程中调用，正文在锁外读取，读入过程中不阻塞投递
+     */
+    private void indexRestored() {
+        while (true) {
+            MailRecord record;
+            mMailBoxLock.lock();
+            try {
+                if (mRestoredIndex == null) {
+                    return;
+                }
+                mRestoredIndexedUpTo = Math.max(mRestoredIndexedUpTo, mFirstId);
+                if (mRestoredIndexedUpTo >= mRestoredEnd) {
+                    return;
+                }
+                record = get(mRestoredIndexedUpTo - mFirstId);
+            } finally {
+                mMailBoxLock.unlock();
+            }
+
+            MailContent content = new MailContent();
+            content.content = record.getContent();
+
+            mMailBoxLock.lock();
+            try {
+                // 期间可能已经被淘汰了
+                if (mRestoredIndex != null && record.getId() >= mFirstId) {
+                    mRestoredIndex.add(record.getId(), content);
+                    mRestoredIndexedUpTo = record.getId() + 1;
+                }
+            } finally {
+                mMailBoxLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 兼容接口，会把每封邮件完整解码一次，邮件较多时请使用 {@link #getAllRecords()}
+     */
     public ArrayList<MailContent> getAllMails() {
+        ArrayList<MailRecord> records = getAllRecords();
+        ArrayList<MailContent> mails = new ArrayList<MailContent>(records.size());
+        for (MailRecord record : records) {
+            mails.add(record.toMailContent());
+        }
+        return mails;
+    }
+
+    public ArrayList<MailRecord> getAllRecords() {
         mMailBoxLock.lock();
         try {
-            return (ArrayList<MailContent>) mAllMails.clone();
+            evict(System.currentTimeMillis());
+            ArrayList<MailRecord> records = new ArrayList<MailRecord>(mCount);
+            for (int i = 0; i < mCount; i++) {
+                records.add(get(i));
+            }
+            return records;
         } finally {
             mMailBoxLock.unlock();
         }
     }
+
+    /**
+     * 按索引查找邮件，结果按接收顺序排列
+     */
+    public ArrayList<MailContent> search(MailQuery query) {
+        mMailBoxLock.lock();
+        try {
+            evict(System.currentTimeMillis());
+            int minId = mFirstId + lowerBound(query.getReceivedFrom());
+            int maxId = mFirstId + lowerBound(query.getReceivedTo());
+            int[] ids = mIndex.match(query, Math.max(minId, mRestoredEnd), maxId);
+            if (mRestoredIndex != null && minId < mRestoredEnd) {
+                int[] restored = mRestoredIndex.match(query, minId, Math.min(maxId, mRestoredEnd));
+                int[] temp = new int[restored.length + ids.length];
+                System.arraycopy(restored, 0, temp, 0, restored.length);
+                System.arraycopy(ids, 0, temp, restored.length, ids.length);
+                ids = temp;
+            }
+            ArrayList<MailContent> result = new ArrayList<MailContent>(ids.length);
+            for (int id : ids) {
+                result.add(get(id - mFirstId).toMailContent());
+            }
+            return result;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    public int getMailCount() {
+        mMailBoxLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    public long getTotalBytes() {
+        mMailBoxLock.lock();
+        try {
+            return mTotalBytes;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * @return 收到的邮件正文的总字节数，共用的正文按每封邮件各算一次
+     */
+    public long getBodyBytes() {
+        mMailBoxLock.lock();
+        try {
+            return mBodyBytes;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * @return 去重后的正文长度之和
+     */
+    public long getUniqueBodyBytes() {
+        mMailBoxLock.lock();
+        try {
+            return mUniqueBodyBytes;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * @return 去重和压缩后实际保存的正文字节数
+     */
+    public long getStoredBodyBytes() {
+        mMailBoxLock.lock();
+        try {
+            return mStoredBodyBytes;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * @return 实际保存的正文份数
+     */
+    public int getStoredBodies() {
+        mMailBoxLock.lock();
+        try {
+            return mStoredBodies;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * @return 正文总字节数与去重后字节数之比，没有正文时为 1
+     */
+    public double getDedupRatio() {
+        mMailBoxLock.lock();
+        try {
+            return mUniqueBodyBytes == 0 ? 1 : (double) mBodyBytes / mUniqueBodyBytes;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    /**
+     * @return 去重后的正文字节数与实际保存字节数之比，没有正文时为 1
+     */
+    public double getCompressionRatio() {
+        mMailBoxLock.lock();
+        try {
+            return mStoredBodyBytes == 0 ? 1 : (double) mUniqueBodyBytes / mStoredBodyBytes;
+        } finally {
+            mMailBoxLock.unlock();
+        }
+    }
+
+    public long getEvictedByCount() {
+        return mEvictedByCount.get();
+    }
+
+    public long getEvictedByBytes() {
+        return mEvictedByBytes.get();
+    }
+
+    public long getEvictedByAge() {
+        return mEvictedByAge.get();
+    }
+
+    /**
+     * @return 已经写入淘汰文件的邮件数
+     */
+    public long getSpilledCount() {
+        return mSpilled.get();
+    }
+
+    /**
+     * @return 已淘汰但还没写入淘汰文件的邮件数
+     */
+    public int getPendingSpillCount() {
+        return mPendingSpills.get();
+    }
+
+    public Histogram getDeliveryLatency() {
+        return mDeliveryLatency;
+    }
+
+    /**
+     * 增加锁外找到并比较过的已有正文或者新建的正文的引用。只在持有锁时调用
+     * <p/>
+     * 没有引用的正文是新建的，或者是比较期间已经被淘汰的已有正文，内容都已经确认过，表中没有这个摘要时放入表中。
+     * 表中已经有了（其间别的线程放入了同样摘要的正文，或者摘要相同内容却不同），
+     * 为了不在锁内比较，这一份单独保存，不放入表中
+     */
+    private void addBody(MailBody body) {
+        if (body.mRefs == 0 && !mBodies.containsKey(body.mKey)) {
+            mBodies.put(body.mKey, body);
+        }
+        retain(body);
+    }
+
+    private void retain(MailBody body) {
+        if (body.mRefs++ == 0) {
+            mUniqueBodyBytes += body.size();
+            mStoredBodyBytes += body.storedSize();
+            mStoredBodies++;
+        }
+        mBodyBytes += body.size();
+    }
+
+    private void release(MailBody body) {
+        mBodyBytes -= body.size();
+        if (--body.mRefs == 0) {
+            mUniqueBodyBytes -= body.size();
+            mStoredBodyBytes -= body.storedSize();
+            mStoredBodies--;
+            if (body.mKey != null && mBodies.get(body.mKey) == body) {
+                mBodies.remove(body.mKey);
+            }
+        }
+    }
+
+    private MailRecord get(int index) {
+        return mRing[(mHead + index) & (mRing.length - 1)];
+    }
+
+    private void append(MailRecord record) {
+        if (mCount == mRing.length) {
+            MailRecord[] temp = new MailRecord[mRing.length * 2];
+            for (int i = 0; i < mCount; i++) {
+                temp[i] = get(i);
+            }
+            mRing = temp;
+            mHead = 0;
+        }
+        mRing[(mHead + mCount) & (mRing.length - 1)] = record;
+        mCount++;
+        mTotalBytes += record.getSize();
+    }
+
+    /**
+     * 从表头开始淘汰超出限制的邮件。每次投递最多让总量超出一封，
+     * 所以均摊下来每次只淘汰常数封邮件，不会整体扫描收件箱。
+     */
+    private void evict(long now) {
+        while (mCount > 0) {
+            MailRecord head = mRing[mHead];
+            AtomicLong reason;
+            if (mMaxCount > 0 && mCount > mMaxCount) {
+                reason = mEvictedByCount;
+            } else if (mMaxBytes > 0 && mTotalBytes > mMaxBytes) {
+                reason = mEvictedByBytes;
+            } else if (mMaxAge > 0 && now - head.getReceiveTime() > mMaxAge) {
+                reason = mEvictedByAge;
+            } else {
+                break;
+            }
+            reason.incrementAndGet();
+
+            mRing[mHead] = null;
+            mHead = (mHead + 1) & (mRing.length - 1);
+            mCount--;
+            mFirstId++;
+            mTotalBytes -= head.getSize();
+            release(head.getBody());
+
+            MailContent mail = head.toMailContent();
+            if (head.getId() < mRestoredEnd) {
+                removeRestored(head.getId(), mail);
+            } else {
+                mIndex.remove(head.getId(), mail);
+            }
+            spill(head, mail);
+        }
+    }
+
+    private void removeRestored(int id, MailContent mail) {
+        if (id >= mRestoredIndexedUpTo) {
+            // 正文还没有加入索引
+            mail = mail.clone();
+            mail.content = null;
+        }
+        mRestoredIndex.remove(id, mail);
+        if (id + 1 == mRestoredEnd) {
+            mRestoredIndex = null;
+        }
+    }
+
+    private void spill(final MailRecord record, final MailContent mail) {
+        if (mSpillFile == null) {
+            return;
+        }
+        final File spillFile = mSpillFile;
+        mPendingSpills.incrementAndGet();
+        mSpillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSpill(spillFile, record, mail);
+                    mSpilled.incrementAndGet();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    mPendingSpills.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File mSpillWriterFile = null;
+    private Writer mSpillWriter = null;
+
+    /**
+     * 只在淘汰线程中调用
+     */
+    private void writeSpill(File spillFile, MailRecord record, MailContent mail) throws IOException {
+        if (!spillFile.equals(mSpillWriterFile)) {
+            if (mSpillWriter != null) {
+                mSpillWriter.close();
+            }
+            mSpillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), UTF_8));
+            mSpillWriterFile = spillFile;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+        Writer writer = mSpillWriter;
+        writer.write("From " + (mail.from == null ? "MAILER-DAEMON" : mail.from) + " "
+                + format.format(new Date(record.getReceiveTime())) + "\n");
+        writer.write("X-Envelope-To: " + mail.to + "\n");
+        if (mail.content != null) {
+            BufferedReader reader = new BufferedReader(new StringReader(mail.content));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // mbox 格式要求对正文中以 From 开头的行转义，已经转义过的行（>From、>>From……）再加一层
+                int quotes = 0;
+                while (quotes < line.length() && line.charAt(quotes) == '>') {
+                    quotes++;
+                }
+                if (line.startsWith("From ", quotes)) {
+                    writer.write('>');
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        writer.write('\n');
+
+        // 队列中没有待写的邮件时才真正落盘，连续淘汰时合并写入
+        if (mPendingSpills.get() <= 1) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return 第一封接收时间不早于 time 的邮件的下标
+     */
+    private int lowerBound(long time) {
+        int from = 0, to = mCount;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (get(mid).getReceiveTime() < time) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
 }
@@ -1,3 +1,5 @@
+import java.io.File;
+
 /**
  * Created by Noisyfox on 2015/3/31.
  */
@@ -6,6 +8,15 @@ public class MailContent implements Cloneable {
     public String to;
     public String subject;
     public String content;
+    // 服务器收到的原始字节，content 是它按 UTF-8 解码的结果。不是合法 UTF-8 的 8 位内容
+    // 解码后再编码会变样，所以收件箱和转发队列保存这份原始字节
+    public byte[] raw;
+    // 服务器接收时解析得到的 MIME 结构，位置相对于 raw，没有 raw 时相对于 content 的 UTF-8 编码
+    public MimePart mime;
+    // 正文（顶层头部之后的部分）的 SHA-256，服务器接收时计算，为 null 时由收件箱计算
+    public byte[] bodyDigest;
+    // 客户端发送时作为附件的文件
+    public File[] attachments;
 
     @Override
     protected MailContent clone() {
@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 收件箱倒排索引
+ * <p/>
+ * 每封邮件在投递时分配一个递增的 id，from/to/subject/content 各字段分词后
+ * 把 id 追加到对应词项的倒排表中。由于 id 单调递增，倒排表天然有序，
+ * 追加是 O(1)，查询只需要对命中的倒排表做归并求交，与收件箱总大小无关。
+ * <p/>
+ * 本类不是线程安全的，由 {@link MailBox} 在持有收件箱锁时调用。
+ */
+public class MailIndex {
+
+    public enum Field {
+        FROM,
+        TO,
+        SUBJECT,
+        CONTENT
+    }
+
+    private static final int[] EMPTY = new int[0];
+
+    private final EnumMap<Field, TreeMap<String, PostingList>> mTerms =
+            new EnumMap<Field, TreeMap<String, PostingList>>(Field.class);
+
+    public MailIndex() {
+        for (Field field : Field.values()) {
+            mTerms.put(field, new TreeMap<String, PostingList>());
+        }
+    }
+
+    /**
+     * 把一封邮件加入索引，id 必须大于之前加入的所有 id
+     */
+    public void add(int id, MailContent mail) {
+        index(id, mail, true);
+    }
+
+    /**
+     * 把一封邮件移出索引，只能按加入的顺序移除最早的邮件，
+     * 因此只需要丢掉相关倒排表的表头，不必扫描整个倒排表
+     */
+    public void remove(int id, MailContent mail) {
+        index(id, mail, false);
+    }
+
+    private void index(int id, MailContent mail, boolean add) {
+        indexAddress(Field.FROM, id, mail.from, add);
+        indexAddress(Field.TO, id, mail.to, add);
+        indexText(Field.SUBJECT, id, mail.subject, add);
+        indexText(Field.CONTENT, id, mail.content, add);
+    }
+
+    private void indexAddress(Field field, int id, String address, boolean add) {
+        if (address == null) {
+            return;
+        }
+        address = address.trim().toLowerCase();
+        if (address.isEmpty()) {
+            return;
+        }
+        // 完整地址、本地部分和域名各自作为一个词项，方便按地址或按域名精确查找
+        indexTerm(field, id, address, add);
+        int at = address.indexOf('@');
+        if (at > 0) {
+            indexTerm(field, id, address.substring(0, at), add);
+            if (at + 1 < address.length()) {
+                indexTerm(field, id, address.substring(at + 1), add);
+            }
+        }
+        indexText(field, id, address, add);
+    }
+
+    private void indexText(Field field, int id, String text, boolean add) {
+        if (text == null) {
+            return;
+        }
+        int len = text.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++) {
+            boolean tokenChar = i < len && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                indexTerm(field, id, text.substring(start, i).toLowerCase(), add);
+                start = -1;
+            }
+        }
+    }
+
+    private void indexTerm(Field field, int id, String term, boolean add) {
+        TreeMap<String, PostingList> terms = mTerms.get(field);
+        PostingList postings = terms.get(term);
+        if (add) {
+            if (postings == null) {
+                postings = new PostingList();
+                terms.put(term, postings);
+            }
+            postings.add(id);
+        } else if (postings != null) {
+            postings.removeUpTo(id);
+            if (postings.isEmpty()) {
+                terms.remove(term);
+            }
+        }
+    }
+
+    /**
+     * 执行查询，返回 [minId, maxId) 范围内命中的 id，按升序排列
+     */
+    public int[] match(MailQuery query, int minId, int maxId) {
+        if (minId >= maxId) {
+            return EMPTY;
+        }
+
+        ArrayList<MailQuery.Clause> clauses = query.getClauses();
+        if (clauses.isEmpty()) {
+            int[] all = new int[maxId - minId];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = minId + i;
+            }
+            return all;
+        }
+
+        int[][] lists = new int[clauses.size()][];
+        int[] starts = new int[clauses.size()];
+        int[] ends = new int[clauses.size()];
+        for (int i = 0; i < lists.length; i++) {
+            MailQuery.Clause clause = clauses.get(i);
+            if (clause.prefix) {
+                lists[i] = prefixPostings(clause.field, clause.text);
+                starts[i] = 0;
+                ends[i] = lists[i].length;
+            } else {
+                PostingList postings = mTerms.get(clause.field).get(clause.text);
+                if (postings == null) {
+                    return EMPTY;
+                }
+                lists[i] = postings.ids;
+                starts[i] = postings.start;
+                ends[i] = postings.end;
+            }
+            if (starts[i] == ends[i]) {
+                return EMPTY;
+            }
+        }
+
+        // 从最短的倒排表开始求交，中间结果只会越来越小
+        int shortest = 0;
+        for (int i = 1; i < lists.length; i++) {
+            if (ends[i] - starts[i] < ends[shortest] - starts[shortest]) {
+                shortest = i;
+            }
+        }
+        int from = lowerBound(lists[shortest], starts[shortest], ends[shortest], minId);
+        int to = lowerBound(lists[shortest], from, ends[shortest], maxId);
+        int[] result = new int[to - from];
+        System.arraycopy(lists[shortest], from, result, 0, result.length);
+        int resultSize = result.length;
+
+        for (int i = 0; i < lists.length && resultSize > 0; i++) {
+            if (i == shortest) {
+                continue;
+            }
+            resultSize = intersect(result, resultSize, lists[i], starts[i], ends[i]);
+        }
+
+        if (resultSize == result.length) {
+            return result;
+        }
+        int[] temp = new int[resultSize];
+        System.arraycopy(result, 0, temp, 0, resultSize);
+        return temp;
+    }
+
+    private int[] prefixPostings(Field field, String prefix) {
+        SortedMap<String, PostingList> range =
+                mTerms.get(field).subMap(prefix, prefix + Character.MAX_VALUE);
+        if (range.isEmpty()) {
+            return EMPTY;
+        }
+        if (range.size() == 1) {
+            PostingList postings = range.values().iterator().next();
+            int[] ids = new int[postings.end - postings.start];
+            System.arraycopy(postings.ids, postings.start, ids, 0, ids.length);
+            return ids;
+        }
+
+        int total = 0;
+        for (PostingList postings : range.values()) {
+            total += postings.end - postings.start;
+        }
+        int[] ids = new int[total];
+        int pos = 0;
+        for (PostingList postings : range.values()) {
+            System.arraycopy(postings.ids, postings.start, ids, pos, postings.end - postings.start);
+            pos += postings.end - postings.start;
+        }
+        Arrays.sort(ids);
+
+        // 同一封邮件可能命中多个词项，去重
+        int size = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] != ids[size - 1]) {
+                ids[size++] = ids[i];
+            }
+        }
+        if (size == ids.length) {
+            return ids;
+        }
+        int[] temp = new int[size];
+        System.arraycopy(ids, 0, temp, 0, size);
+        return temp;
+    }
+
+    /**
+     * 原地求交，结果写回 a，返回结果长度
+     */
+    private static int intersect(int[] a, int aSize, int[] b, int bStart, int bEnd) {
+        int i = 0, j = bStart, size = 0;
+        while (i < aSize && j < bEnd) {
+            int x = a[i];
+            int y = b[j];
+            if (x == y) {
+                a[size++] = x;
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                // b 往往远长于 a，跳跃查找而不是逐个前进
+                j = lowerBound(b, j + 1, bEnd, x);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return [from, to) 中第一个不小于 key 的位置
+     */
+    static int lowerBound(int[] a, int from, int to, int key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (a[mid] < key) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return 当前各字段的词项数，调试用
+     */
+    public int termCount() {
+        int count = 0;
+        for (TreeMap<String, PostingList> terms : mTerms.values()) {
+            count += terms.size();
+        }
+        return count;
+    }
+
+    private static class PostingList {
+        int[] ids = new int[4];
+        // 有效区间为 [start, end)，移除表头时只移动 start
+        int start = 0;
+        int end = 0;
+
+        void add(int id) {
+            // 同一封邮件中重复出现的词只记录一次
+            if (end > start && ids[end - 1] == id) {
+                return;
+            }
+            if (end == ids.length) {
+                int size = end - start;
+                if (start > 0 && start >= size) {
+                    // 一半以上是已移除的表头，原地压缩即可
+                    System.arraycopy(ids, start, ids, 0, size);
+                } else {
+                    int[] temp = new int[size + (size >> 1) + 1];
+                    System.arraycopy(ids, start, temp, 0, size);
+                    ids = temp;
+                }
+                start = 0;
+                end = size;
+            }
+            ids[end++] = id;
+        }
+
+        void removeUpTo(int id) {
+            while (start < end && ids[start] <= id) {
+                start++;
+            }
+            if (start == end) {
+                start = end = 0;
+            } else if (start > 64 && start > (ids.length >> 1)) {
+                // 长期只移除不追加的倒排表也要把空间还回去
+                int size = end - start;
+                int[] temp = new int[size + (size >> 1) + 1];
+                System.arraycopy(ids, start, temp, 0, size);
+                ids = temp;
+                start = 0;
+                end = size;
+            }
+        }
+
+        boolean isEmpty() {
+            return start == end;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+
+/**
+ * 收件箱查询条件，所有条件之间是“与”的关系
+ * <p/>
+ * 例：查找发给 bob@example.com 且标题中含有以 "invoice" 开头的词的邮件
+ * <pre>
+ * mailBox.search(new MailQuery()
+ *         .term(MailIndex.Field.TO, "bob@example.com")
+ *         .prefix(MailIndex.Field.SUBJECT, "invoice"));
+ * </pre>
+ */
+public class MailQuery {
+
+    /* package */ static class Clause {
+        final MailIndex.Field field;
+        final String text;
+        final boolean prefix;
+
+        Clause(MailIndex.Field field, String text, boolean prefix) {
+            this.field = field;
+            this.text = text;
+            this.prefix = prefix;
+        }
+    }
+
+    private final ArrayList<Clause> mClauses = new ArrayList<Clause>();
+    private long mReceivedFrom = Long.MIN_VALUE;
+    private long mReceivedTo = Long.MAX_VALUE;
+
+    /**
+     * 字段中包含该词。地址字段可以直接传完整地址、本地部分或域名；
+     * 传入多个词时（如 "hello world"）要求每个词都出现。
+     *
+     * @throws IllegalArgumentException term 中没有任何词，否则这个条件会匹配所有邮件
+     */
+    public MailQuery term(MailIndex.Field field, String term) {
+        term = term.trim().toLowerCase();
+        if ((field == MailIndex.Field.FROM || field == MailIndex.Field.TO) && term.indexOf('@') > 0) {
+            mClauses.add(new Clause(field, term, false));
+            return this;
+        }
+        int clauses = mClauses.size();
+        int len = term.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++) {
+            boolean tokenChar = i < len && Character.isLetterOrDigit(term.charAt(i));
+            if (tokenChar) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                mClauses.add(new Clause(field, term.substring(start, i), false));
+                start = -1;
+            }
+        }
+        if (mClauses.size() == clauses) {
+            throw new IllegalArgumentException("no words in term: \"" + term + "\"");
+        }
+        return this;
+    }
+
+    /**
+     * 字段中包含以 prefix 开头的词
+     *
+     * @throws IllegalArgumentException prefix 为空，否则这个条件会匹配所有邮件
+     */
+    public MailQuery prefix(MailIndex.Field field, String prefix) {
+        prefix = prefix.trim().toLowerCase();
+        if (prefix.isEmpty()) {
+            throw new IllegalArgumentException("empty prefix");
+        }
+        mClauses.add(new Clause(field, prefix, true));
+        return this;
+    }
+
+    /**
+     * 接收时间在 [from, to) 之内，单位毫秒
+     */
+    public MailQuery receivedBetween(long from, long to) {
+        mReceivedFrom = from;
+        mReceivedTo = to;
+        return this;
+    }
+
+    /* package */ ArrayList<Clause> getClauses() {
+        return mClauses;
+    }
+
+    /* package */ long getReceivedFrom() {
+        return mReceivedFrom;
+    }
+
+    /* package */ long getReceivedTo() {
+        return mReceivedTo;
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * 收件箱中一封邮件的紧凑存储形式
+ * <p/>
+ * from/to/subject 和邮件内容的顶层头部依次以 UTF-8 编码拼接在同一个 byte[] 中，
+ * 头部之后的正文是单独的 {@link MailBody}，内容相同的邮件共用同一份。
+ * 每封邮件只占很少几个对象，而不是 {@link MailContent} 的
+ * 一个对象加四个 String（各自还有一个数组）。各字段在访问时才解码，
+ * 需要兼容旧接口时用 {@link #toMailContent()} 取得一份完整的视图。
+ * <p/>
+ * 从快照恢复的邮件正文不在堆上，而是映射文件中的一段（见 {@link MailSnapshot}），
+ * 第一次访问时才由操作系统读入，MIME 结构也在第一次访问时重新解析。
+ * 正文可能是压缩保存的，每次读取内容时解压。
+ */
+public class MailRecord {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int NULL_FROM = 1;
+    private static final int NULL_TO = 2;
+    private static final int NULL_SUBJECT = 4;
+    private static final int NULL_CONTENT = 8;
+    private static final int HAS_MIME = 16;
+
+    private final int mId;
+    private final long mReceiveTime;
+    private final byte[] mData;
+    private final int mToStart;
+    private final int mSubjectStart;
+    // 邮件内容的头部从这里开始，到 mData 结尾
+    private final int mContentStart;
+    private final byte mNullMask;
+    private final MailBody mBody;
+    private volatile MimePart mMime;
+
+    /**
+     * @param content mail.raw 或者 mail.content 的 UTF-8 编码，结尾部分与 body 相同
+     */
+    /* package */ MailRecord(int id, long receiveTime, MailContent mail, byte[] content, MailBody body) {
+        mId = id;
+        mReceiveTime = receiveTime;
+
+        byte[] from = encode(mail.from);
+        byte[] to = encode(mail.to);
+        byte[] subject = encode(mail.subject);
+        int headerSize = content.length - body.size();
+
+        mToStart = from.length;
+        mSubjectStart = mToStart + to.length;
+        mContentStart = mSubjectStart + subject.length;
+        mData = new byte[mContentStart + headerSize];
+        System.arraycopy(from, 0, mData, 0, from.length);
+        System.arraycopy(to, 0, mData, mToStart, to.length);
+        System.arraycopy(subject, 0, mData, mSubjectStart, subject.length);
+        System.arraycopy(content, 0, mData, mContentStart, headerSize);
+
+        int nullMask = 0;
+        if (mail.from == null) nullMask |= NULL_FROM;
+        if (mail.to == null) nullMask |= NULL_TO;
+        if (mail.subject == null) nullMask |= NULL_SUBJECT;
+        if (mail.content == null) nullMask |= NULL_CONTENT;
+        if (mail.mime != null) nullMask |= HAS_MIME;
+        mNullMask = (byte) nullMask;
+        mMime = mail.mime;
+        mBody = body;
+    }
+
+    /**
+     * 从快照中读取一封邮件，entry 位于 {@link #writeSnapshotEntry(DataOutputStream)} 写入的内容的开头
+     *
+     * @param body 映射文件中的正文
+     */
+    /* package */ MailRecord(int id, ByteBuffer entry, MailBody body) {
+        mId = id;
+        mReceiveTime = entry.getLong();
+        mNullMask = entry.get();
+        mToStart = entry.getInt();
+        mSubjectStart = entry.getInt();
+        mContentStart = entry.getInt();
+        mData = new byte[entry.getInt()];
+        entry.get(mData);
+        mBody = body;
+    }
+
+    /**
+     * 写入除正文以外的内容，正文由 {@link MailBody#writeTo(WritableByteChannel)} 单独写入
+     */
+    /* package */ void writeSnapshotEntry(DataOutputStream out) throws IOException {
+        out.writeLong(mReceiveTime);
+        out.writeByte(mNullMask);
+        out.writeInt(mToStart);
+        out.writeInt(mSubjectStart);
+        out.writeInt(mContentStart);
+        out.writeInt(mData.length);
+        out.write(mData);
+    }
+
+    /**
+     * @return 共用同一份正文的邮件返回同一个对象
+     */
+    /* package */ MailBody getBody() {
+        return mBody;
+    }
+
+    /* package */ static byte[] encode(String s) {
+        return s == null ? new byte[0] : s.getBytes(UTF_8);
+    }
+
+    private String decode(int flag, int start, int end) {
+        if ((mNullMask & flag) != 0) {
+            return null;
+        }
+        return new String(mData, start, end - start, UTF_8);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public long getReceiveTime() {
+        return mReceiveTime;
+    }
+
+    public String getFrom() {
+        return decode(NULL_FROM, 0, mToStart);
+    }
+
+    public String getTo() {
+        return decode(NULL_TO, mToStart, mSubjectStart);
+    }
+
+    public String getSubject() {
+        return decode(NULL_SUBJECT, mSubjectStart, mContentStart);
+    }
+
+    public String getContent() {
+        if ((mNullMask & NULL_CONTENT) != 0) {
+            return null;
+        }
+        return new String(getContentBytes(), UTF_8);
+    }
+
+    /**
+     * @return 接收时解析得到的 MIME 结构，没有则返回 null
+     */
+    public MimePart getMime() {
+        MimePart mime = mMime;
+        if (mime == null && (mNullMask & HAS_MIME) != 0) {
+            byte[] content = getContentBytes();
+            MimeParser parser = new MimeParser();
+            parser.feed(content, 0, content.length);
+            mime = parser.finish(content.length);
+            mMime = mime;
+        }
+        return mime;
+    }
+
+    /**
+     * @return 头部和正文拼接成的完整邮件内容，每次调用都会拷贝
+     */
+    private byte[] getContentBytes() {
+        int headerSize = mData.length - mContentStart;
+        byte[] content = new byte[headerSize + mBody.size()];
+        System.arraycopy(mData, mContentStart, content, 0, headerSize);
+        mBody.copyTo(content, headerSize);
+        return content;
+    }
+
+    /**
+     * @return 所有附件，邮件没有经过解析时返回空列表
+     */
+    public ArrayList<MimePart> getAttachments() {
+        ArrayList<MimePart> attachments = new ArrayList<MimePart>();
+        MimePart mime = getMime();
+        if (mime != null) {
+            mime.collectAttachments(attachments);
+        }
+        return attachments;
+    }
+
+    /**
+     * 解码邮件中某个部分的正文，part 必须来自 {@link #getMime()}
+     */
+    public byte[] decodePart(MimePart part) {
+        return part.decodeBody(getContentBytes(), 0);
+    }
+
+    public String decodePartText(MimePart part) {
+        return part.decodeText(getContentBytes(), 0);
+    }
+
+    /**
+     * @return 邮件编码后的字节数，共用的正文也按完整大小计算
+     */
+    public int getSize() {
+        return mData.length + mBody.size();
+    }
+
+    /**
+     * @return 解码后的完整邮件，每次调用都会生成新对象
+     */
+    public MailContent toMailContent() {
+        MailContent mail = new MailContent();
+        mail.from = getFrom();
+        mail.to = getTo();
+        mail.subject = getSubject();
+        mail.content = getContent();
+        mail.mime = getMime();
+        return mail;
+    }
+
+    @Override
+    public String toString() {
+        String subject = getSubject();
+        StringBuilder sb = new StringBuilder("mail from:").append(getFrom());
+        if (subject != null) {
+            sb.append("  ").append(subject);
+        }
+        int attachments = getAttachments().size();
+        if (attachments > 0) {
+            sb.append("  (").append(attachments).append(" attachments)");
+        }
+        return sb.toString();
+    }
+}
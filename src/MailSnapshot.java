@@ -0,0 +1,320 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 收件箱快照，用于重启后快速恢复
+ * <p/>
+ * 目录中有两个文件：mailbox.&lt;n&gt;.dat 依次存放邮件正文，只追加不修改；
+ * mailbox.idx 是元数据快照，包括每封邮件的 from/to/subject、头部、接收时间和正文在 .dat 中的位置。
+ * 每次写快照只追加还没有写过的正文，再整体重写一份紧凑的 .idx（先写临时文件再替换）。
+ * 共用同一份正文（见 {@link MailBody}）的邮件在 .dat 中也只有一份，加载后仍然共用。
+ * 压缩过的正文按压缩后的内容保存，加载后同样在读取时才解压。
+ * <p/>
+ * 加载时把两个文件映射到内存，只读取 .idx，正文在第一次访问时才由操作系统读入，
+ * 所以恢复的时间只和邮件数有关，与邮件的总大小无关。
+ * <p/>
+ * 淘汰的邮件的正文在 .dat 中失效。共用的正文一直留在第一次写入的位置，失效部分不一定在文件开头，
+ * 所以按仍被引用的正文的总大小计算失效部分，超过一半时只把仍被引用的正文拷贝到下一代的 .dat 中，
+ * 旧文件在新的 .idx 生效后删除。
+ */
+public class MailSnapshot {
+
+    private static final int MAGIC = 0x534d4258; // "SMBX"
+    private static final int VERSION = 3;
+    private static final String INDEX_FILE = "mailbox.idx";
+    // 失效部分至少这么大时才整理 .dat
+    private static final long COMPACT_MIN_BYTES = 4 * 1024 * 1024;
+    // 正文分段映射，每段的大小上限
+    private static final int MAX_REGION = 1 << 30;
+
+    private final File mDir;
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private long mGeneration = 0;
+    private FileChannel mData = null;
+    private long mDataSize = 0;
+
+    // 上次写入 .idx 的正文在 .dat 中的位置
+    private IdentityHashMap<MailBody, Long> mOffsets = new IdentityHashMap<MailBody, Long>();
+
+    public MailSnapshot(File dir) {
+        mDir = dir;
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * 加载已有的快照，没有快照时返回空列表。只能在第一次 {@link #write(int, MailRecord[])} 之前调用
+     *
+     * @return 按 id 顺序排列的邮件，正文没有读入内存
+     */
+    public ArrayList<MailRecord> load() throws IOException {
+        mLock.lock();
+        try {
+            ArrayList<MailRecord> records = new ArrayList<MailRecord>();
+            File indexFile = new File(mDir, INDEX_FILE);
+            if (!indexFile.exists()) {
+                return records;
+            }
+
+            FileInputStream in = new FileInputStream(indexFile);
+            ByteBuffer index;
+            try {
+                index = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexFile.length());
+            } finally {
+                in.close();
+            }
+            if (index.remaining() < 28 || index.getInt() != MAGIC || index.getInt() != VERSION) {
+                throw new IOException(indexFile + ": not a mailbox snapshot");
+            }
+            long generation = index.getLong();
+            long dataSize = index.getLong();
+            int firstId = index.getInt();
+            int count = index.getInt();
+
+            IdentityHashMap<MailBody, Long> offsets = new IdentityHashMap<MailBody, Long>();
+            // 同一位置的正文共用一个 MailBody
+            HashMap<Long, MailBody> bodies = new HashMap<Long, MailBody>();
+            File dataFile = dataFile(generation);
+            FileChannel data = new RandomAccessFile(dataFile, "rw").getChannel();
+            try {
+                if (data.size() < dataSize) {
+                    throw new IOException(dataFile + ": truncated, expected " + dataSize + " bytes");
+                }
+                // 上次写快照时追加了正文但没来得及替换 .idx，这部分没有被引用
+                data.truncate(dataSize);
+
+                MappedByteBuffer region = null;
+                long regionStart = 0;
+                for (int i = 0; i < count; i++) {
+                    long offset = index.getLong();
+                    int size = index.getInt();
+                    int bodySize = index.getInt();
+                    if (offset < 0 || offset + size > dataSize || size > bodySize) {
+                        throw new IOException(indexFile + ": mail " + (firstId + i) + " is out of range");
+                    }
+                    MailBody body = bodies.get(offset);
+                    if (body == null) {
+                        if (region == null || offset < regionStart || offset + size > regionStart + region.capacity()) {
+                            regionStart = offset;
+                            region = data.map(FileChannel.MapMode.READ_ONLY, offset,
+                                    Math.max(size, Math.min(MAX_REGION, dataSize - offset)));
+                        }
+                        ByteBuffer slice = region.duplicate();
+                        slice.position((int) (offset - regionStart));
+                        slice.limit(slice.position() + size);
+                        body = new MailBody(slice.slice(), bodySize);
+                        bodies.put(offset, body);
+                        offsets.put(body, offset);
+                    } else if (body.storedSize() != size || body.size() != bodySize) {
+                        throw new IOException(indexFile + ": mail " + (firstId + i) + " has inconsistent size");
+                    }
+                    records.add(new MailRecord(firstId + i, index, body));
+                }
+                mData = data;
+            } finally {
+                if (mData != data) {
+                    data.close();
+                }
+            }
+
+            mGeneration = generation;
+            mDataSize = dataSize;
+            mOffsets = offsets;
+            deleteStaleData();
+            return records;
+        } catch (RuntimeException e) {
+            // 映射的数据不完整时 ByteBuffer 抛出的异常
+            throw new IOException("corrupt mailbox snapshot in " + mDir, e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 把当前收件箱写入快照，records 是收件箱中 id 从 firstId 开始的全部邮件。
+     * 调用方不需要持有收件箱锁，多个线程同时调用时依次执行
+     */
+    public void write(int firstId, MailRecord[] records) throws IOException {
+        mLock.lock();
+        try {
+            if (mData == null) {
+                if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                    throw new IOException("can't create " + mDir);
+                }
+                // 没有加载过快照，文件里即使有内容也没有被引用
+                mData = new RandomAccessFile(dataFile(mGeneration), "rw").getChannel();
+                mData.truncate(0);
+                mDataSize = 0;
+            }
+
+            // 仍被引用的正文，每份只算一次
+            IdentityHashMap<MailBody, Long> live = new IdentityHashMap<MailBody, Long>();
+            long liveSize = 0;
+            for (MailRecord record : records) {
+                MailBody body = record.getBody();
+                Long offset = mOffsets.get(body);
+                if (offset != null && live.put(body, offset) == null) {
+                    liveSize += body.storedSize();
+                }
+            }
+            long deadSize = mDataSize - liveSize;
+            File staleData = null;
+            if (deadSize >= COMPACT_MIN_BYTES && deadSize > liveSize) {
+                staleData = dataFile(mGeneration);
+                compact(live);
+            }
+
+            IdentityHashMap<MailBody, Long> written = new IdentityHashMap<MailBody, Long>();
+            long[] offsets = new long[records.length];
+            for (int i = 0; i < records.length; i++) {
+                MailBody body = records[i].getBody();
+                Long offset = written.get(body);
+                if (offset == null) {
+                    offset = mOffsets.get(body);
+                }
+                if (offset == null) {
+                    mData.position(mDataSize);
+                    offset = mDataSize;
+                    mDataSize += body.writeTo(mData);
+                }
+                written.put(body, offset);
+                offsets[i] = offset;
+            }
+            // 正文先落盘，.idx 才能引用它们
+            mData.force(false);
+            writeIndex(firstId, records, offsets);
+
+            mOffsets = written;
+            if (staleData != null && !staleData.delete()) {
+                // 还被映射着的文件在部分系统上无法删除，下次加载时再删
+                staleData.deleteOnExit();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭 .dat 文件，已经加载的正文仍然可以读取。之后再 {@link #write(int, MailRecord[])} 会重新开始一份快照
+     */
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mData != null) {
+                mData.close();
+                mData = null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 按原来的顺序把 live 中的正文拷贝到下一代文件，只保留它们的位置
+     */
+    private void compact(IdentityHashMap<MailBody, Long> live) throws IOException {
+        ArrayList<Map.Entry<MailBody, Long>> entries = new ArrayList<Map.Entry<MailBody, Long>>(live.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<MailBody, Long>>() {
+            @Override
+            public int compare(Map.Entry<MailBody, Long> a, Map.Entry<MailBody, Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+
+        IdentityHashMap<MailBody, Long> offsets = new IdentityHashMap<MailBody, Long>();
+        long size = 0;
+        FileChannel next = new RandomAccessFile(dataFile(mGeneration + 1), "rw").getChannel();
+        try {
+            next.truncate(0);
+            // 相邻的正文合并成一段拷贝
+            long runStart = 0;
+            long runEnd = 0;
+            for (Map.Entry<MailBody, Long> entry : entries) {
+                long offset = entry.getValue();
+                if (offset != runEnd) {
+                    transfer(runStart, runEnd, next);
+                    runStart = offset;
+                }
+                runEnd = offset + entry.getKey().storedSize();
+                offsets.put(entry.getKey(), size);
+                size += entry.getKey().storedSize();
+            }
+            transfer(runStart, runEnd, next);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        mData.close();
+        mData = next;
+        mDataSize = size;
+        mGeneration++;
+        mOffsets = offsets;
+    }
+
+    private void transfer(long start, long end, FileChannel target) throws IOException {
+        while (start < end) {
+            start += mData.transferTo(start, end - start, target);
+        }
+    }
+
+    private void writeIndex(int firstId, MailRecord[] records, long[] offsets) throws IOException {
+        File indexFile = new File(mDir, INDEX_FILE);
+        File temp = new File(mDir, INDEX_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mGeneration);
+            out.writeLong(mDataSize);
+            out.writeInt(firstId);
+            out.writeInt(records.length);
+            for (int i = 0; i < records.length; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(records[i].getBody().storedSize());
+                out.writeInt(records[i].getBody().size());
+                records[i].writeSnapshotEntry(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(indexFile) && !(indexFile.delete() && temp.renameTo(indexFile))) {
+            throw new IOException("can't replace " + indexFile);
+        }
+    }
+
+    private File dataFile(long generation) {
+        return new File(mDir, "mailbox." + generation + ".dat");
+    }
+
+    /**
+     * 删除以前各代没有删掉的 .dat
+     */
+    private void deleteStaleData() {
+        File current = dataFile(mGeneration);
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("mailbox.") && name.endsWith(".dat") && !file.equals(current)) {
+                file.delete();
+            }
+        }
+    }
+}
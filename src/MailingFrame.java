@@ -131,15 +131,15 @@ public class MailingFrame implements MailBox.OnMailReceiveListener {
         list_server_mail.addListSelectionListener(new ListSelectionListener() {
             @Override
             public void valueChanged(ListSelectionEvent e) {
-                MailContent selectedMail = (MailContent) list_server_mail.getSelectedValue();
+                MailRecord selectedMail = (MailRecord) list_server_mail.getSelectedValue();
                 if (selectedMail == null) {
                     textField_server_from.setText("");
                     textField_server_to.setText("");
                     textArea_server_mail.setText("");
                 } else {
-                    textField_server_from.setText(selectedMail.from);
-                    textField_server_to.setText(selectedMail.to);
-                    textArea_server_mail.setText(selectedMail.content);
+                    textField_server_from.setText(selectedMail.getFrom());
+                    textField_server_to.setText(selectedMail.getTo());
+                    textArea_server_mail.setText(selectedMail.getContent());
                 }
             }
         });
@@ -147,12 +147,12 @@ public class MailingFrame implements MailBox.OnMailReceiveListener {
 
     @Override
     public void onMailReceived(MailContent mail) {
-        final ArrayList<MailContent> allMails = mMailBox.getAllMails();
+        final ArrayList<MailRecord> allMails = mMailBox.getAllRecords();
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
                 listModel_mail.clear();
-                for (MailContent mail : allMails) {
+                for (MailRecord mail : allMails) {
                     listModel_mail.addElement(mail);
                 }
             }
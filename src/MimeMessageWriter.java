@@ -0,0 +1,197 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 把 {@link MailContent} 写成一封 MIME 邮件
+ * <p/>
+ * 没有附件时是一个 text/plain 部分，有附件时是 multipart/mixed，
+ * 附件从文件中分块读出，经过 {@link Base64OutputStream} 直接写入目标流，
+ * 整封邮件不会在内存中生成。行尾统一使用 CRLF，dot-stuffing 由目标流负责。
+ */
+public class MimeMessageWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = {'\r', '\n'};
+    // 每个 encoded-word 编码前的字节数，保证编码后不超过 75 个字符
+    private static final int ENCODED_WORD_BYTES = 45;
+
+    private final MailContent mMail;
+    private final byte[] mBuffer = new byte[8192];
+    private final byte[] mBase64Buffer = new byte[8192];
+
+    public MimeMessageWriter(MailContent mail) {
+        mMail = mail;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeHeader(out, "From", "<" + mMail.from + ">");
+        writeHeader(out, "To", "<" + mMail.to + ">");
+        if (mMail.subject != null) {
+            writeHeader(out, "Subject", encodeHeaderValue(mMail.subject));
+        }
+        writeHeader(out, "Date", new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US).format(new Date()));
+        writeHeader(out, "X-Mailer", "noisyfox's mailer");
+        writeHeader(out, "MIME-Version", "1.0");
+
+        File[] attachments = mMail.attachments;
+        if (attachments == null || attachments.length == 0) {
+            writeText(out);
+            return;
+        }
+
+        String boundary = newBoundary();
+        writeHeader(out, "Content-Type", "multipart/mixed; boundary=\"" + boundary + "\"");
+        out.write(CRLF);
+        writeAscii(out, "This is a multi-part message in MIME format.");
+        out.write(CRLF);
+
+        writeDelimiter(out, boundary, false);
+        writeText(out);
+        for (File attachment : attachments) {
+            writeDelimiter(out, boundary, false);
+            writeAttachment(out, attachment);
+        }
+        writeDelimiter(out, boundary, true);
+    }
+
+    private void writeText(OutputStream out) throws IOException {
+        // BDAT 不经过任何转换，正文必须自己统一成 CRLF
+        byte[] text = mMail.content == null ? new byte[0] : mMail.content.replaceAll("\r?\n", "\r\n").getBytes(UTF_8);
+        writeHeader(out, "Content-Type", "text/plain; charset=\"utf-8\"");
+        writeHeader(out, "Content-Transfer-Encoding", isAscii(text) ? "7bit" : "8bit");
+        out.write(CRLF);
+        out.write(text);
+    }
+
+    private void writeAttachment(OutputStream out, File file) throws IOException {
+        String name = file.getName();
+        String type = URLConnection.guessContentTypeFromName(name);
+        if (type == null) {
+            type = "application/octet-stream";
+        }
+        String nameParameter;
+        if (isPlainHeaderText(name) && name.indexOf('"') < 0) {
+            nameParameter = "filename=\"" + name + "\"";
+        } else {
+            // RFC 2231
+            nameParameter = "filename*=UTF-8''" + percentEncode(name);
+        }
+        writeHeader(out, "Content-Type", type);
+        writeHeader(out, "Content-Disposition", "attachment; " + nameParameter);
+        writeHeader(out, "Content-Transfer-Encoding", "base64");
+        out.write(CRLF);
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            Base64OutputStream base64 = new Base64OutputStream(out, Base64.CRLF | Base64.NO_CLOSE, true, mBase64Buffer);
+            int n;
+            while ((n = in.read(mBuffer)) != -1) {
+                base64.write(mBuffer, 0, n);
+            }
+            base64.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 分隔行前面的 CRLF 属于分隔行本身
+     */
+    private static void writeDelimiter(OutputStream out, String boundary, boolean close) throws IOException {
+        out.write(CRLF);
+        writeAscii(out, "--" + boundary + (close ? "--" : ""));
+        out.write(CRLF);
+    }
+
+    private static void writeHeader(OutputStream out, String name, String value) throws IOException {
+        out.write((name + ": " + value).getBytes(UTF_8));
+        out.write(CRLF);
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(UTF_8));
+    }
+
+    private static String newBoundary() {
+        return "----=_Part_" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE)
+                + "_" + Long.toHexString(System.currentTimeMillis());
+    }
+
+    /**
+     * 含有非 ASCII 字符时按 RFC 2047 编码成若干个 encoded-word，每个单独占一行
+     */
+    /* package */ static String encodeHeaderValue(String value) {
+        if (isPlainHeaderText(value)) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < value.length(); ) {
+            int codePoint = value.codePointAt(i);
+            int next = i + Character.charCount(codePoint);
+            int len = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (bytes + len > ENCODED_WORD_BYTES) {
+                appendEncodedWord(sb, value.substring(start, i));
+                start = i;
+                bytes = 0;
+            }
+            bytes += len;
+            i = next;
+        }
+        appendEncodedWord(sb, value.substring(start));
+        return sb.toString();
+    }
+
+    private static void appendEncodedWord(StringBuilder sb, String text) {
+        if (sb.length() > 0) {
+            sb.append("\r\n ");
+        }
+        sb.append("=?UTF-8?B?").append(Base64.encodeToString(text.getBytes(UTF_8), Base64.NO_WRAP)).append("?=");
+    }
+
+    private static String percentEncode(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : s.getBytes(UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '_') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 是否可以直接写入头部：只含 ASCII 且不含换行
+     */
+    private static boolean isPlainHeaderText(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || c == '\r' || c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(byte[] b) {
+        for (byte c : b) {
+            if (c < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
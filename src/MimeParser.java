@@ -0,0 +1,224 @@
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * 流式 MIME 解析器
+ * <p/>
+ * 邮件数据边接收边通过 {@link #feed(byte[], int, int)} 送入，解析器只逐行扫描，
+ * 头部行完整拷贝，正文行只保留开头足够判断是否为 boundary 的几个字节，
+ * 正文本身不做任何拷贝和解码，只记录在原始邮件中的位置。
+ * 数据结束时调用 {@link #finish(int)} 得到整封邮件的 {@link MimePart} 树。
+ */
+public class MimeParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // RFC 5322 限制一行不超过 998 字节，这里放宽一些，超出部分丢弃
+    private static final int MAX_HEADER_LINE = 8192;
+    // RFC 2046 限制 boundary 不超过 70 字节，加上前后的 "--" 和行尾空白
+    private static final int MAX_BOUNDARY_LINE = 128;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_BODY = 1;
+
+    private final MimePart mRoot = new MimePart();
+    // 从根到当前部分的路径，路径上的部分都还没有结束
+    private final ArrayList<MimePart> mPath = new ArrayList<MimePart>();
+    // 路径上已经遇到结束 boundary 的 multipart，之后的内容都是 epilogue
+    private final ArrayList<MimePart> mClosed = new ArrayList<MimePart>();
+    private int mState = STATE_HEADER;
+
+    private int mPosition = 0;
+    private int mLineStart = 0;
+    private int mPrevContentEnd = 0;
+    private byte mLastByte = 0;
+    private byte[] mLine = new byte[MAX_BOUNDARY_LINE];
+    private int mLineLength = 0;
+
+    public MimeParser() {
+        mPath.add(mRoot);
+    }
+
+    /**
+     * 送入接下来的一段原始邮件数据
+     */
+    public void feed(byte[] data, int offset, int len) {
+        int end = offset + len;
+        while (offset < end) {
+            int nl = offset;
+            while (nl < end && data[nl] != '\n') {
+                nl++;
+            }
+            int stop = nl < end ? nl + 1 : end;
+            appendLine(data, offset, stop - offset);
+            mPosition += stop - offset;
+            if (nl < end) {
+                byte beforeNewLine = nl > offset ? data[nl - 1] : mLastByte;
+                processLine(mPosition - (beforeNewLine == '\r' ? 2 : 1));
+                mLineStart = mPosition;
+                mLineLength = 0;
+            }
+            mLastByte = data[stop - 1];
+            offset = stop;
+        }
+    }
+
+    /**
+     * @return 顶层头部之后正文的开始位置，还没有遇到头部结尾的空行时返回 -1
+     */
+    public int getBodyStart() {
+        return mRoot.mBodyStart;
+    }
+
+    /**
+     * 结束解析
+     *
+     * @param size 邮件的实际长度。DATA 结尾的 &lt;CR&gt;&lt;LF&gt;.&lt;CR&gt;&lt;LF&gt;
+     *             可以一起送入，超出 size 的部分不会算进任何正文
+     * @return 整封邮件对应的部分
+     */
+    public MimePart finish(int size) {
+        if (mPosition > mLineStart) {
+            processLine(mPosition);
+        }
+        for (int i = mPath.size() - 1; i >= 0; i--) {
+            endPart(mPath.get(i), size);
+        }
+        clamp(mRoot, size);
+        return mRoot;
+    }
+
+    private void appendLine(byte[] data, int offset, int len) {
+        int limit = mState == STATE_HEADER ? MAX_HEADER_LINE : MAX_BOUNDARY_LINE;
+        int n = Math.min(len, limit - mLineLength);
+        if (n <= 0) {
+            return;
+        }
+        if (mLineLength + n > mLine.length) {
+            byte[] temp = new byte[Math.min(Math.max(mLine.length * 2, mLineLength + n), MAX_HEADER_LINE)];
+            System.arraycopy(mLine, 0, temp, 0, mLineLength);
+            mLine = temp;
+        }
+        System.arraycopy(data, offset, mLine, mLineLength, n);
+        mLineLength += n;
+    }
+
+    /**
+     * @param contentEnd 当前行去掉行尾换行符之后的结束位置
+     */
+    private void processLine(int contentEnd) {
+        int len = Math.min(mLineLength, contentEnd - mLineStart);
+        if (mState == STATE_HEADER) {
+            processHeaderLine(len);
+        } else {
+            processBodyLine(len);
+        }
+        mPrevContentEnd = contentEnd;
+    }
+
+    private void processHeaderLine(int len) {
+        MimePart part = current();
+        if (len == 0) {
+            startBody(part, mPosition);
+            return;
+        }
+        if (mLine[0] == ' ' || mLine[0] == '\t') {
+            part.appendToLastHeader(new String(mLine, 0, len, UTF_8));
+            return;
+        }
+        int colon = 0;
+        while (colon < len && mLine[colon] != ':') {
+            colon++;
+        }
+        if (colon == len || colon == 0) {
+            // 不是合法的头部行，把它当作正文的开始
+            startBody(part, mLineStart);
+            processBodyLine(len);
+            return;
+        }
+        part.addHeader(new String(mLine, 0, colon, UTF_8).trim(),
+                new String(mLine, colon + 1, len - colon - 1, UTF_8).trim());
+    }
+
+    private void processBodyLine(int len) {
+        if (len < 2 || mLine[0] != '-' || mLine[1] != '-') {
+            return;
+        }
+        // 内层的 boundary 优先，但外层的 boundary 也能结束没有正确结束的内层部分
+        for (int i = mPath.size() - 1; i >= 0; i--) {
+            MimePart multipart = mPath.get(i);
+            if (!multipart.isMultipart() || mClosed.contains(multipart)) {
+                continue;
+            }
+            int match = matchBoundary(multipart.getBoundary(), len);
+            if (match == 0) {
+                continue;
+            }
+            while (mPath.size() > i + 1) {
+                MimePart part = mPath.remove(mPath.size() - 1);
+                mClosed.remove(part);
+                endPart(part, mPrevContentEnd);
+            }
+            if (match == 1) {
+                MimePart child = new MimePart();
+                multipart.addChild(child);
+                mPath.add(child);
+                mState = STATE_HEADER;
+            } else {
+                mClosed.add(multipart);
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return 0 不匹配，1 分隔行，2 结束行
+     */
+    private int matchBoundary(String boundary, int len) {
+        // 忽略行尾空白
+        while (len > 2 && (mLine[len - 1] == ' ' || mLine[len - 1] == '\t')) {
+            len--;
+        }
+        int bLen = boundary.length();
+        if (len != bLen + 2 && len != bLen + 4) {
+            return 0;
+        }
+        for (int i = 0; i < bLen; i++) {
+            if (mLine[i + 2] != boundary.charAt(i)) {
+                return 0;
+            }
+        }
+        if (len == bLen + 2) {
+            return 1;
+        }
+        return mLine[bLen + 2] == '-' && mLine[bLen + 3] == '-' ? 2 : 0;
+    }
+
+    private void startBody(MimePart part, int bodyStart) {
+        part.parseHeaders();
+        part.mBodyStart = bodyStart;
+        mState = STATE_BODY;
+    }
+
+    private void endPart(MimePart part, int bodyEnd) {
+        if (part.mBodyStart < 0) {
+            // 头部还没有结束就遇到了 boundary 或者数据结尾
+            part.parseHeaders();
+            part.mBodyStart = mLineStart;
+        }
+        part.mBodyEnd = Math.max(part.mBodyStart, bodyEnd);
+        mState = STATE_BODY;
+    }
+
+    private MimePart current() {
+        return mPath.get(mPath.size() - 1);
+    }
+
+    private static void clamp(MimePart part, int size) {
+        part.mBodyStart = Math.min(part.mBodyStart, size);
+        part.mBodyEnd = Math.min(part.mBodyEnd, size);
+        for (MimePart child : part.getChildren()) {
+            clamp(child, size);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 解析得到的一个 MIME 部分（整封邮件本身也是一个部分）
+ * <p/>
+ * 只保存头部和正文在原始邮件中的位置，不保存正文内容。需要正文时调用
+ * {@link #decodeBody(byte[], int)}，按 Content-Transfer-Encoding 解码。
+ */
+public class MimePart {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ArrayList<String> mHeaderNames = new ArrayList<String>();
+    private final ArrayList<String> mHeaderValues = new ArrayList<String>();
+    private final ArrayList<MimePart> mChildren = new ArrayList<MimePart>();
+
+    /* package */ int mBodyStart = -1;
+    /* package */ int mBodyEnd = -1;
+
+    private String mContentType = "text/plain";
+    private String mBoundary = null;
+    private String mCharset = null;
+    private String mFileName = null;
+    private boolean mAttachment = false;
+    private String mTransferEncoding = "7bit";
+
+    /* package */ void addHeader(String name, String value) {
+        mHeaderNames.add(name);
+        mHeaderValues.add(value);
+    }
+
+    /* package */ void appendToLastHeader(String continuation) {
+        int last = mHeaderValues.size() - 1;
+        if (last >= 0) {
+            mHeaderValues.set(last, mHeaderValues.get(last) + " " + continuation.trim());
+        }
+    }
+
+    /* package */ void addChild(MimePart child) {
+        mChildren.add(child);
+    }
+
+    /**
+     * 头部读完后解析 Content-Type 等常用字段
+     */
+    /* package */ void parseHeaders() {
+        String contentType = getHeader("Content-Type");
+        if (contentType != null) {
+            String[] params = splitParameters(contentType);
+            if (params[0].indexOf('/') > 0) {
+                mContentType = params[0].toLowerCase();
+            }
+            mBoundary = getParameter(params, "boundary");
+            mCharset = getParameter(params, "charset");
+            mFileName = getParameter(params, "name");
+        }
+        String disposition = getHeader("Content-Disposition");
+        if (disposition != null) {
+            String[] params = splitParameters(disposition);
+            mAttachment = "attachment".equalsIgnoreCase(params[0]);
+            String fileName = getParameter(params, "filename");
+            if (fileName != null) {
+                mFileName = fileName;
+            }
+        }
+        if (mFileName != null) {
+            mFileName = decodeHeaderValue(mFileName);
+        }
+        String encoding = getHeader("Content-Transfer-Encoding");
+        if (encoding != null) {
+            mTransferEncoding = encoding.trim().toLowerCase();
+        }
+    }
+
+    /**
+     * @return 第一个同名头部的原始值，没有则返回 null
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < mHeaderNames.size(); i++) {
+            if (mHeaderNames.get(i).equalsIgnoreCase(name)) {
+                return mHeaderValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 第一个同名头部解码 RFC 2047 encoded-word 之后的值
+     */
+    public String getDecodedHeader(String name) {
+        String value = getHeader(name);
+        return value == null ? null : decodeHeaderValue(value);
+    }
+
+    public List<String> getHeaderNames() {
+        return Collections.unmodifiableList(mHeaderNames);
+    }
+
+    public List<MimePart> getChildren() {
+        return Collections.unmodifiableList(mChildren);
+    }
+
+    /**
+     * @return 小写的 type/subtype，如 text/plain
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public boolean isMultipart() {
+        return mContentType.startsWith("multipart/") && mBoundary != null;
+    }
+
+    /* package */ String getBoundary() {
+        return mBoundary;
+    }
+
+    public String getCharset() {
+        return mCharset;
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * @return 是否应当作为附件展示：显式声明为 attachment，或者带有文件名
+     */
+    public boolean isAttachment() {
+        return mAttachment || (mFileName != null && !isMultipart());
+    }
+
+    public String getTransferEncoding() {
+        return mTransferEncoding;
+    }
+
+    /**
+     * @return 编码后的正文在原始邮件中的长度
+     */
+    public int getRawBodySize() {
+        return mBodyEnd - mBodyStart;
+    }
+
+    /**
+     * 递归收集所有附件
+     */
+    public void collectAttachments(List<MimePart> out) {
+        if (isAttachment()) {
+            out.add(this);
+        }
+        for (MimePart child : mChildren) {
+            child.collectAttachments(out);
+        }
+    }
+
+    /**
+     * 按 Content-Transfer-Encoding 解码正文
+     *
+     * @param message 原始邮件
+     * @param offset  邮件在 message 中的起始位置
+     */
+    public byte[] decodeBody(byte[] message, int offset) {
+        // 邮件内容经过一次字符串转换后长度可能变化，不能越界
+        int start = Math.min(offset + mBodyStart, message.length);
+        int len = Math.min(offset + mBodyEnd, message.length) - start;
+        if ("base64".equals(mTransferEncoding)) {
+            try {
+                return Base64.decode(message, start, len, Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                // 格式错误时退回原始内容，至少能看到点什么
+            }
+        } else if ("quoted-printable".equals(mTransferEncoding)) {
+            return decodeQuotedPrintable(message, start, len, false);
+        }
+        byte[] raw = new byte[len];
+        System.arraycopy(message, start, raw, 0, len);
+        return raw;
+    }
+
+    /**
+     * 解码正文并按 charset 转成文本，charset 未知时使用 UTF-8
+     */
+    public String decodeText(byte[] message, int offset) {
+        byte[] body = decodeBody(message, offset);
+        Charset charset = UTF_8;
+        if (mCharset != null) {
+            try {
+                charset = Charset.forName(mCharset);
+            } catch (Exception e) {
+                // 不认识的字符集
+            }
+        }
+        return new String(body, charset);
+    }
+
+    private static String[] splitParameters(String value) {
+        ArrayList<String> parts = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                sb.append(c);
+            } else if (c == ';' && !quoted) {
+                parts.add(sb.toString().trim());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        parts.add(sb.toString().trim());
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    private static String getParameter(String[] params, String name) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i];
+            int eq = param.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String key = param.substring(0, eq).trim();
+            String value = param.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value;
+            }
+            if (key.equalsIgnoreCase(name + "*")) {
+                // RFC 2231：charset'language'percent-encoded
+                int first = value.indexOf('\'');
+                int second = first < 0 ? -1 : value.indexOf('\'', first + 1);
+                if (second > 0) {
+                    String charset = value.substring(0, first);
+                    byte[] bytes = decodePercent(value.substring(second + 1));
+                    try {
+                        return new String(bytes, charset.isEmpty() ? "US-ASCII" : charset);
+                    } catch (UnsupportedEncodingException e) {
+                        return new String(bytes, UTF_8);
+                    }
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] decodePercent(String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length()) {
+                int hi = Character.digit(s.charAt(i + 1), 16);
+                int lo = Character.digit(s.charAt(i + 2), 16);
+                if (hi >= 0 && lo >= 0) {
+                    out.write((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            out.write(c);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码头部中的 RFC 2047 encoded-word，如 =?UTF-8?B?5L2g5aW9?=
+     */
+    public static String decodeHeaderValue(String value) {
+        if (value.indexOf("=?") < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        boolean lastWasEncoded = false;
+        while (pos < value.length()) {
+            int start = value.indexOf("=?", pos);
+            if (start < 0) {
+                sb.append(value, pos, value.length());
+                break;
+            }
+            int charsetEnd = value.indexOf('?', start + 2);
+            int encodingEnd = charsetEnd < 0 ? -1 : value.indexOf('?', charsetEnd + 1);
+            int end = encodingEnd < 0 ? -1 : value.indexOf("?=", encodingEnd + 1);
+            if (end < 0 || encodingEnd != charsetEnd + 2) {
+                sb.append(value, pos, value.length());
+                break;
+            }
+
+            // 相邻的两个 encoded-word 之间的空白需要忽略
+            String between = value.substring(pos, start);
+            if (!(lastWasEncoded && between.trim().isEmpty())) {
+                sb.append(between);
+            }
+
+            String charset = value.substring(start + 2, charsetEnd);
+            char encoding = Character.toUpperCase(value.charAt(charsetEnd + 1));
+            String text = value.substring(encodingEnd + 1, end);
+            byte[] bytes;
+            try {
+                if (encoding == 'B') {
+                    bytes = Base64.decode(text, Base64.DEFAULT);
+                } else if (encoding == 'Q') {
+                    byte[] ascii = text.getBytes("US-ASCII");
+                    bytes = decodeQuotedPrintable(ascii, 0, ascii.length, true);
+                } else {
+                    bytes = null;
+                }
+            } catch (Exception e) {
+                bytes = null;
+            }
+            if (bytes == null) {
+                sb.append(value, start, end + 2);
+            } else {
+                try {
+                    sb.append(new String(bytes, charset));
+                } catch (UnsupportedEncodingException e) {
+                    sb.append(new String(bytes, UTF_8));
+                }
+            }
+            lastWasEncoded = bytes != null;
+            pos = end + 2;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param header true 表示头部中的 Q 编码，'_' 代表空格
+     */
+    /* package */ static byte[] decodeQuotedPrintable(byte[] in, int offset, int len, boolean header) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len);
+        int end = offset + len;
+        for (int i = offset; i < end; i++) {
+            byte b = in[i];
+            if (b == '_' && header) {
+                out.write(' ');
+            } else if (b == '=') {
+                if (i + 1 < end && in[i + 1] == '\n') {
+                    // 软换行
+                    i += 1;
+                    continue;
+                }
+                if (i + 2 < end && in[i + 1] == '\r' && in[i + 2] == '\n') {
+                    i += 2;
+                    continue;
+                }
+                int hi = i + 1 < end ? Character.digit(in[i + 1], 16) : -1;
+                int lo = i + 2 < end ? Character.digit(in[i + 2], 16) : -1;
+                if (hi >= 0 && lo >= 0) {
+                    out.write((hi << 4) | lo);
+                    i += 2;
+                } else {
+                    out.write(b);
+                }
+            } else {
+                out.write(b);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按键（发件人、IP 等）分别限速的令牌桶，每个键每 period 最多 permits 次，可以一次用完
+ * <p/>
+ * 每个键的桶只用一个 AtomicLong 表示：桶重新装满的时刻。每次取令牌把它推后一个间隔，
+ * 推后的结果超出当前时刻一整个 period 说明桶空了。取令牌是一次查表加一次 CAS，不加锁。
+ * <p/>
+ * 装满时刻已经过去的键和从来没见过的键行为完全一样，可以直接丢掉。
+ * 键的数量超过 maxKeys 时先清掉这些空闲的键，仍然超出时再随意丢掉一些，
+ * 被丢掉的键相当于桶被重新装满，所以内存有上限，代价是这时的限制偏松。
+ */
+public class RateLimiter<K> {
+
+    private final int mPermits;
+    private final long mPeriodNanos;
+    private final long mIntervalNanos;
+    private final int mMaxKeys;
+    private final ConcurrentHashMap<K, AtomicLong> mBuckets = new ConcurrentHashMap<K, AtomicLong>();
+    private final AtomicBoolean mSweeping = new AtomicBoolean();
+
+    private final AtomicLong mLimited = new AtomicLong();
+
+    /**
+     * @param permits      每个键在 periodMillis 内允许的次数
+     * @param periodMillis 周期，单位毫秒
+     * @param maxKeys      最多记录的键数
+     */
+    public RateLimiter(int permits, long periodMillis, int maxKeys) {
+        if (permits <= 0 || periodMillis <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("permits, periodMillis and maxKeys must be positive");
+        }
+        mPermits = permits;
+        mPeriodNanos = periodMillis * 1000000;
+        mIntervalNanos = mPeriodNanos / permits;
+        mMaxKeys = maxKeys;
+    }
+
+    public int getPermits() {
+        return mPermits;
+    }
+
+    /**
+     * @return 被拒绝的次数
+     */
+    public long getLimited() {
+        return mLimited.get();
+    }
+
+    public int getKeyCount() {
+        return mBuckets.size();
+    }
+
+    /**
+     * 为 key 取一个令牌
+     *
+     * @return false 表示超出了限制
+     */
+    public boolean tryAcquire(K key) {
+        long now = System.nanoTime();
+        AtomicLong bucket = mBuckets.get(key);
+        if (bucket == null) {
+            // 新的键，桶是满的，这次一定允许
+            bucket = new AtomicLong(now + mIntervalNanos);
+            AtomicLong existing = mBuckets.putIfAbsent(key, bucket);
+            if (existing == null) {
+                if (mBuckets.size() > mMaxKeys) {
+                    sweep(now);
+                }
+                return true;
+            }
+            bucket = existing;
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + mIntervalNanos;
+            if (next - now > mPeriodNanos) {
+                mLimited.incrementAndGet();
+                return false;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 由使键数超出上限的线程执行，同时只有一个线程在清理
+     */
+    private void sweep(long now) {
+        if (!mSweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // 清理期间别的线程可能刚取到要删的桶，它的这次计数会丢失，只是让限制松一个令牌
+            Iterator<Map.Entry<K, AtomicLong>> it = mBuckets.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().get() - now <= 0) {
+                    it.remove();
+                }
+            }
+            // 空闲的键不够多时只能随意丢掉一部分限速中的键，
+            // 总是清到上限的 7/8 以下，免得每来一个新键就要扫描一遍
+            int excess = mBuckets.size() - (mMaxKeys - mMaxKeys / 8);
+            it = mBuckets.entrySet().iterator();
+            while (excess > 0 && it.hasNext()) {
+                it.next();
+                it.remove();
+                excess--;
+            }
+        } finally {
+            mSweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 转发队列，把 {@link SMTPServer} 接收的非本地邮件发往目标服务器
+ * <p/>
+ * 每封邮件在确认接收之前写入队列目录：&lt;id&gt;.eml 是原始邮件，&lt;id&gt;.env 是信封和重试状态。
+ * 重启后队列目录中的邮件在 {@link #start()} 之后继续发送，发送成功后删除，被永久拒绝（5xx）或者重试次数用完的
+ * 邮件移到 failed 子目录。
+ * <p/>
+ * 邮件按收件人域名的路由找到目标地址，不查 MX，没有路由的邮件不转发。同一个目标同时最多建立 {@link #setMaxConnectionsPerHost(int)} 个连接，
+ * 每个连接用 {@link SMTPClient} 连续发送排队的多封邮件，直到队列为空或者达到
+ * {@link #setMaxMailsPerConnection(int)}。临时失败（4xx 或连接出错）的邮件按指数退避重试，
+ * 连接不上的目标也按指数退避，期间不再为它建立连接。
+ */
+public class RelayQueue {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String DEFAULT_ROUTE = "*";
+
+    private static class QueuedMail {
+        final long mId;
+        final MailContent mEnvelope;
+        int mAttempts = 0;
+        // 下次发送的时间，系统时间，写入 .env 以便重启后继续
+        long mNextAttempt = 0;
+
+        QueuedMail(long id, String from, String to) {
+            mId = id;
+            mEnvelope = new MailContent();
+            mEnvelope.from = from;
+            mEnvelope.to = to;
+        }
+    }
+
+    /**
+     * 一个目标服务器的待发邮件和连接
+     */
+    private class Destination {
+        final String mHost;
+        final int mPort;
+        final ArrayDeque<QueuedMail> mPending = new ArrayDeque<QueuedMail>();
+        int mConnections = 0;
+        // 连续连接失败的次数，大于 0 时在 mRetryAt 之前不建立连接
+        int mFailures = 0;
+        long mRetryAt = 0;
+
+        Destination(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        @Override
+        public String toString() {
+            return mHost + ":" + mPort;
+        }
+    }
+
+    /**
+     * 一个到目标服务器的连接，回调都在该连接的客户端线程中执行
+     */
+    private class Connection implements SMTPClient.OnClientListener {
+        final Destination mDestination;
+        QueuedMail mCurrent = null;
+        int mSent = 0;
+        boolean mReady = false;
+
+        Connection(Destination destination) {
+            mDestination = destination;
+        }
+
+        @Override
+        public void onReady(SMTPClient client) {
+            QueuedMail next = null;
+            mLock.lock();
+            try {
+                if (!mReady) {
+                    mReady = true;
+                    mDestination.mFailures = 0;
+                }
+                if (!mStopped && mSent < mMaxMailsPerConnection) {
+                    next = mDestination.mPending.poll();
+                }
+                mCurrent = next;
+            } finally {
+                mLock.unlock();
+            }
+            if (next == null) {
+                client.quit();
+                return;
+            }
+            mSent++;
+            client.sendMail(next.mEnvelope, messageFile(next.mId));
+        }
+
+        @Override
+        public void onMailSent(SMTPClient client, MailContent mail, int code) {
+            QueuedMail queued = mCurrent;
+            mCurrent = null;
+            if (queued != null) {
+                finish(queued, code);
+            }
+        }
+
+        @Override
+        public void onClosed(SMTPClient client) {
+            mLock.lock();
+            try {
+                Destination destination = mDestination;
+                destination.mConnections--;
+                if (!mReady) {
+                    // 没有连上，整个目标退避
+                    destination.mFailures++;
+                    destination.mRetryAt = System.currentTimeMillis() + backoff(destination.mFailures);
+                    mLogger.println("Relay: can't connect to " + destination + ", retry in "
+                            + (destination.mRetryAt - System.currentTimeMillis()) / 1000 + "s");
+                    scheduleDispatch(destination, destination.mRetryAt - System.currentTimeMillis());
+                }
+                dispatch(destination);
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    private final File mSpoolDir;
+    private final File mFailedDir;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final HashMap<String, Destination> mDestinations = new HashMap<String, Destination>();
+    private final HashMap<String, String> mRoutes = new HashMap<String, String>();
+    // 退避等待使用的定时器，任务只做入队和建立连接，不会阻塞
+    private final TimingWheel mTimer = new TimingWheel("RelayQueue-timer", 100, 512);
+    private final Logger mLogger = Logger.getInstance();
+    private long mNextId = 0;
+    // 恢复的邮件，在 start() 时按各自的下次发送时间入队
+    private ArrayList<QueuedMail> mRecovered;
+    private boolean mStarted = false;
+    private boolean mStopped = false;
+
+    private volatile int mMaxConnectionsPerHost = 2;
+    private volatile int mMaxMailsPerConnection = 100;
+    private volatile long mInitialRetry = 5000;
+    private volatile long mMaxRetry = 30 * 60 * 1000;
+    private volatile int mMaxAttempts = 10;
+
+    private final AtomicLong mQueued = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mDeferred = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    /**
+     * 使用 spoolDir 作为队列目录，其中已有的邮件在 {@link #start()} 之后重新发送
+     */
+    public RelayQueue(File spoolDir) throws IOException {
+        mSpoolDir = spoolDir;
+        mFailedDir = new File(spoolDir, "failed");
+        if (!mFailedDir.isDirectory() && !mFailedDir.mkdirs()) {
+            throw new IOException("can't create " + mFailedDir);
+        }
+        recover();
+    }
+
+    /**
+     * 设置收件人域名到目标服务器的静态路由，domain 为 "*" 时作为默认路由。
+     * 没有匹配的路由的邮件不转发，见 {@link #canRelay(String, boolean)}
+     */
+    public void addRoute(String domain, String host, int port) {
+        mLock.lock();
+        try {
+            mRoutes.put(domain.toLowerCase(), host + ":" + port);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnections) {
+        mMaxConnectionsPerHost = maxConnections;
+    }
+
+    public void setMaxMailsPerConnection(int maxMails) {
+        mMaxMailsPerConnection = maxMails;
+    }
+
+    /**
+     * 设置重试策略，第 n 次临时失败后等待 initialMillis * 2^(n-1)，不超过 maxMillis
+     *
+     * @param maxAttempts 最多发送的次数，用完后按永久失败处理
+     */
+    public void setRetry(long initialMillis, long maxMillis, int maxAttempts) {
+        mInitialRetry = initialMillis;
+        mMaxRetry = maxMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * 写入队列，返回之后邮件已经落盘，可以向客户端确认
+     */
+    public void enqueue(MailContent mail) throws IOException {
+        long id;
+        mLock.lock();
+        try {
+            if (mStopped) {
+                throw new IOException("relay queue stopped");
+            }
+            if (routeOf(mail.to) == null) {
+                throw new IOException("no route for " + mail.to);
+            }
+            id = mNextId++;
+        } finally {
+            mLock.unlock();
+        }
+
+        QueuedMail queued = new QueuedMail(id, mail.from, mail.to);
+        byte[] content = mail.raw != null ? mail.raw
+                : mail.content == null ? new byte[0] : mail.content.getBytes(UTF_8);
+        FileOutputStream out = new FileOutputStream(messageFile(id));
+        try {
+            out.write(content);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // .env 替换完成才算入队，之前崩溃留下的 .eml 在恢复时删除
+        writeEnvelope(queued);
+        mQueued.incrementAndGet();
+
+        requeue(queued);
+    }
+
+    /**
+     * 为域名专门设置的路由对所有会话开放，默认路由会把邮件发往任意域名，只对通过认证的会话开放，
+     * 否则模拟器就成了开放转发
+     *
+     * @param domain        收件人的域名
+     * @param authenticated 会话是否通过了认证
+     */
+    public boolean canRelay(String domain, boolean authenticated) {
+        mLock.lock();
+        try {
+            String key = domain.toLowerCase();
+            return mRoutes.containsKey(key) || (authenticated && mRoutes.containsKey(DEFAULT_ROUTE));
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 设置好路由之后调用，开始发送。之前入队的邮件只是写入队列目录
+     */
+    public void start() {
+        mLock.lock();
+        try {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            long now = System.currentTimeMillis();
+            for (final QueuedMail mail : mRecovered) {
+                if (mail.mNextAttempt > now) {
+                    mTimer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            requeue(mail);
+                        }
+                    }, mail.mNextAttempt - now);
+                } else {
+                    enqueueLocked(mail);
+                }
+            }
+            mRecovered = null;
+            for (Destination destination : mDestinations.values()) {
+                dispatch(destination);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 停止建立新连接，正在发送的邮件发送完毕后连接退出，队列中的邮件保留在目录中
+     */
+    public void stop() {
+        mLock.lock();
+        try {
+            mStopped = true;
+        } finally {
+            mLock.unlock();
+        }
+        mTimer.stop();
+    }
+
+    /**
+     * @return 排队等待连接的邮件数，不包括正在发送和等待重试的邮件
+     */
+    public int getQueueSize() {
+        mLock.lock();
+        try {
+            int size = 0;
+            for (Destination destination : mDestinations.values()) {
+                size += destination.mPending.size();
+            }
+            return size;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getQueued() {
+        return mQueued.get();
+    }
+
+    public long getDelivered() {
+        return mDelivered.get();
+    }
+
+    /**
+     * @return 临时失败后安排重试的次数
+     */
+    public long getDeferred() {
+        return mDeferred.get();
+    }
+
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    /**
+     * 处理一封邮件的发送结果，在连接线程中调用，不持有队列锁
+     */
+    private void finish(final QueuedMail mail, int code) {
+        mail.mAttempts++;
+        if (code >= 200 && code < 300) {
+            mDelivered.incrementAndGet();
+            messageFile(mail.mId).delete();
+            envelopeFile(mail.mId).delete();
+            return;
+        }
+        if ((code >= 500 && code < 600) || mail.mAttempts >= mMaxAttempts) {
+            fail(mail, "failed with " + code);
+            return;
+        }
+
+        mDeferred.incrementAndGet();
+        long delay = backoff(mail.mAttempts);
+        mail.mNextAttempt = System.currentTimeMillis() + delay;
+        try {
+            writeEnvelope(mail);
+        } catch (IOException e) {
+            // 只影响重启后的重试时间
+            e.printStackTrace();
+        }
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                requeue(mail);
+            }
+        }, delay);
+    }
+
+    private void fail(QueuedMail mail, String reason) {
+        mFailed.incrementAndGet();
+        mLogger.println("Relay: mail " + mail.mId + " to " + mail.mEnvelope.to + " " + reason);
+        File message = new File(mFailedDir, mail.mId + ".eml");
+        File envelope = new File(mFailedDir, mail.mId + ".env");
+        // renameTo 会覆盖已有的文件，failed 中同名的邮件（比如旧版本重启后 id 重复）换一个名字
+        for (int n = 1; message.exists() || envelope.exists(); n++) {
+            message = new File(mFailedDir, mail.mId + "-" + n + ".eml");
+            envelope = new File(mFailedDir, mail.mId + "-" + n + ".env");
+        }
+        // 先移正文，失败时邮件整个留在队列目录中，重启后重新发送
+        if (!messageFile(mail.mId).renameTo(message) || !envelopeFile(mail.mId).renameTo(envelope)) {
+            mLogger.println("Relay: can't move mail " + mail.mId + " to " + mFailedDir);
+        }
+    }
+
+    private void requeue(QueuedMail mail) {
+        mLock.lock();
+        try {
+            enqueueLocked(mail);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 把邮件放进目标的待发列表，路由在入队之后被删掉的邮件直接失败。只在持有队列锁时调用
+     */
+    private void enqueueLocked(QueuedMail mail) {
+        String route = routeOf(mail.mEnvelope.to);
+        if (route == null) {
+            fail(mail, "has no route");
+            return;
+        }
+        Destination destination = mDestinations.get(route);
+        if (destination == null) {
+            int colon = route.lastIndexOf(':');
+            destination = new Destination(route.substring(0, colon), Integer.parseInt(route.substring(colon + 1)));
+            mDestinations.put(route, destination);
+        }
+        destination.mPending.add(mail);
+        dispatch(destination);
+    }
+
+    private long backoff(int failures) {
+        long delay = mInitialRetry << Math.min(failures - 1, 30);
+        return delay <= 0 || delay > mMaxRetry ? mMaxRetry : delay;
+    }
+
+    /**
+     * 待发邮件比连接多时建立新连接，只在持有队列锁时调用
+     */
+    private void dispatch(Destination destination) {
+        if (!mStarted || mStopped || destination.mRetryAt > System.currentTimeMillis()) {
+            return;
+        }
+        while (destination.mConnections < mMaxConnectionsPerHost
+                && destination.mConnections < destination.mPending.size()) {
+            destination.mConnections++;
+            new SMTPClient(destination.mHost, destination.mPort, new Connection(destination));
+        }
+    }
+
+    private void scheduleDispatch(final Destination destination, long delay) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mLock.lock();
+                try {
+                    dispatch(destination);
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * @return 收件人对应的 host:port，没有路由时返回 null。只在持有队列锁时调用
+     */
+    private String routeOf(String to) {
+        String domain = to.substring(to.indexOf('@') + 1).toLowerCase();
+        String route = mRoutes.get(domain);
+        return route != null ? route : mRoutes.get(DEFAULT_ROUTE);
+    }
+
+    private File messageFile(long id) {
+        return new File(mSpoolDir, id + ".eml");
+    }
+
+    private File envelopeFile(long id) {
+        return new File(mSpoolDir, id + ".env");
+    }
+
+    /**
+     * .env 每行一项：from、to、已发送次数、下次发送时间
+     */
+    private void writeEnvelope(QueuedMail mail) throws IOException {
+        File file = envelopeFile(mail.mId);
+        File temp = new File(mSpoolDir, mail.mId + ".env.tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            writer.write(mail.mEnvelope.from + "\n" + mail.mEnvelope.to + "\n"
+                    + mail.mAttempts + "\n" + mail.mNextAttempt + "\n");
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("can't replace " + file);
+        }
+    }
+
+    /**
+     * 读取队列目录中的邮件，按 id 排序后放入 {@link #mRecovered}。新的 id 从队列目录和 failed 中最大的 id 之后开始
+     */
+    private void recover() throws IOException {
+        File[] failed = mFailedDir.listFiles();
+        if (failed == null) {
+            throw new IOException("can't list " + mFailedDir);
+        }
+        for (File file : failed) {
+            String name = file.getName();
+            int end = 0;
+            while (end < name.length() && Character.isDigit(name.charAt(end))) {
+                end++;
+            }
+            try {
+                mNextId = Math.max(mNextId, Long.parseLong(name.substring(0, end)) + 1);
+            } catch (NumberFormatException e) {
+                // 不是移过来的邮件
+            }
+        }
+
+        File[] files = mSpoolDir.listFiles();
+        if (files == null) {
+            throw new IOException("can't list " + mSpoolDir);
+        }
+        ArrayList<QueuedMail> mails = new ArrayList<QueuedMail>();
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, dot < 0 ? name.length() : dot));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            mNextId = Math.max(mNextId, id + 1);
+            if (name.endsWith(".env.tmp") || (name.endsWith(".eml") && !envelopeFile(id).exists())) {
+                // 没有来得及入队，客户端也没有收到确认
+                file.delete();
+            } else if (name.endsWith(".env") && !messageFile(id).exists()) {
+                file.delete();
+            } else if (name.endsWith(".env")) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+                try {
+                    QueuedMail mail = new QueuedMail(id, reader.readLine(), reader.readLine());
+                    mail.mAttempts = Integer.parseInt(reader.readLine());
+                    mail.mNextAttempt = Long.parseLong(reader.readLine());
+                    mails.add(mail);
+                } catch (RuntimeException e) {
+                    throw new IOException(file + ": bad envelope", e);
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+
+        Collections.sort(mails, new Comparator<QueuedMail>() {
+            @Override
+            public int compare(QueuedMail lhs, QueuedMail rhs) {
+                return lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+            }
+        });
+        mRecovered = mails;
+    }
+}
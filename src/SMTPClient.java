@@ -1,10 +1,16 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -17,6 +23,7 @@ public class SMTPClient {
         CONNECTING,
         HELO,
         EHLO,
+        STARTTLS,
         AUTH,
         AUTH_USER,
         AUTH_PASSWORD,
@@ -28,32 +35,78 @@ public class SMTPClient {
         DATA
     }
 
+    /**
+     * 由程序驱动的客户端的事件回调，都在客户端线程中执行
+     */
+    public interface OnClientListener {
+        /**
+         * 进入 READY 状态，可以在回调中调用 {@link #sendMail(MailContent, File)} 或 {@link #quit()}，
+         * 都不调用时客户端停在 READY 等待
+         */
+        void onReady(SMTPClient client);
+
+        /**
+         * 一封邮件发送结束
+         *
+         * @param code 服务器对这封邮件的最后一个响应码，250 表示成功，-1 表示连接出错
+         */
+        void onMailSent(SMTPClient client, MailContent mail, int code);
+
+        /**
+         * 客户端线程退出，连接失败时不会先收到 {@link #onReady(SMTPClient)}
+         */
+        void onClosed(SMTPClient client);
+    }
+
     public SMTPClient(String address) {
         mServerAddress = address;
+        mPort = SMTPDefine.DEFAULT_PORT;
         mNeedAuth = false;
         mUser = mPassword = null;
+        mListener = null;
 
         startThread();
     }
 
     public SMTPClient(String address, String user, String password) {
         mServerAddress = address;
+        mPort = SMTPDefine.DEFAULT_PORT;
         mNeedAuth = true;
         mUser = user;
         mPassword = password;
+        mListener = null;
+
+        startThread();
+    }
+
+    /**
+     * 由程序驱动的客户端：不等待 {@link #nextStep()}，创建后立即连接，
+     * 自动执行到 READY，之后通过 listener 决定发送下一封邮件还是退出
+     */
+    public SMTPClient(String address, int port, OnClientListener listener) {
+        mServerAddress = address;
+        mPort = port;
+        mNeedAuth = false;
+        mUser = mPassword = null;
+        mListener = listener;
 
         startThread();
     }
 
     private final String mServerAddress;
+    private final int mPort;
     private final boolean mNeedAuth;
     private final String mUser;
     private final String mPassword;
+    private final OnClientListener mListener;
     private final ReentrantLock mStepLock = new ReentrantLock();
     private final Condition mStepCondition = mStepLock.newCondition();
 
+    private volatile long mRespondTimeout = 10000;
+    private volatile SSLContext mSSLContext = null;
     private Step mCurrentStep = Step.CONNECTING;
     private MailContent mCurrentMail = null;
+    private File mCurrentMailFile = null;
 
     private void startThread() {
         new ClientThread().start();
@@ -73,6 +126,18 @@ public class SMTPClient {
     }
 
     public void sendMail(MailContent mailContent) {
+        sendMail(mailContent, null);
+    }
+
+    /**
+     * 发送一个事先生成好的邮件文件（如 .eml），文件内容原样作为整封邮件发送，
+     * mailContent 只提供 MAIL FROM/RCPT TO 使用的地址。
+     * <p/>
+     * 文件不会被读入内存：服务器支持 CHUNKING 时用 BDAT 加
+     * {@link FileChannel#transferTo} 直接从文件发往 socket，此时文件应当已经使用
+     * CRLF 换行；否则用 DATA 发送，在流式拷贝的过程中完成 dot-stuffing 和换行转换。
+     */
+    public void sendMail(MailContent mailContent, File messageFile) {
         if (mStepLock.tryLock()) {
             try {
                 if (mCurrentStep != Step.READY) {
@@ -80,6 +145,7 @@ public class SMTPClient {
                 }
                 mCurrentStep = Step.MAIL_FROM;
                 mCurrentMail = mailContent;
+                mCurrentMailFile = messageFile;
                 nextStep();
             } finally {
                 mStepLock.unlock();
@@ -87,6 +153,22 @@ public class SMTPClient {
         }
     }
 
+    /**
+     * 设置等待服务器响应的超时时间，默认 10 秒
+     */
+    public void setRespondTimeout(long millis) {
+        mRespondTimeout = millis;
+    }
+
+    /**
+     * 设置后在 EHLO 之后使用 STARTTLS 加密连接，服务器不支持时直接退出，必须在连接之前调用。
+     * 客户端的会话缓存属于 context，多个客户端共用同一个 context 时，
+     * 之后到同一服务器的连接可以复用会话，不必完整握手。
+     */
+    public void setSSLContext(SSLContext context) {
+        mSSLContext = context;
+    }
+
     public void quit() {
         if (mStepLock.tryLock()) {
             try {
@@ -98,9 +180,60 @@ public class SMTPClient {
         }
     }
 
-    private class ServerRespond {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // RFC 5321 规定响应行最长 512 字节，这里放宽到 64K，再长就认为出错了
+    private static final int MAX_RESPOND_LINE = 64 * 1024;
+    // 响应队列的槽位数，必须是 2 的幂
+    private static final int RESPOND_SLOTS = 8;
+
+    /**
+     * 一条（可能有多行的）服务器响应
+     * <p/>
+     * 各行去掉 "250-" 这样的前缀和行尾 CRLF 后依次存放在同一个 byte[] 中，
+     * 需要文本时才通过 {@link #getLine(int)} 生成 String。
+     */
+    private static class ServerRespond {
         public int mRespondCode;
-        public String[] mRespond;
+        private byte[] mData = new byte[128];
+        private int mLength = 0;
+        // 每行两个元素：起始位置和结束位置
+        private int[] mLines = new int[8];
+        private int mLineCount = 0;
+
+        void reset(int code) {
+            mRespondCode = code;
+            mLength = 0;
+            mLineCount = 0;
+        }
+
+        void appendLine(byte[] src, int start, int end) {
+            int len = end - start;
+            if (mLength + len > mData.length) {
+                byte[] temp = new byte[Math.max(mData.length * 2, mLength + len)];
+                System.arraycopy(mData, 0, temp, 0, mLength);
+                mData = temp;
+            }
+            if (mLineCount * 2 == mLines.length) {
+                int[] temp = new int[mLines.length * 2];
+                System.arraycopy(mLines, 0, temp, 0, mLines.length);
+                mLines = temp;
+            }
+            System.arraycopy(src, start, mData, mLength, len);
+            mLines[mLineCount * 2] = mLength;
+            mLength += len;
+            mLines[mLineCount * 2 + 1] = mLength;
+            mLineCount++;
+        }
+
+        public int getLineCount() {
+            return mLineCount;
+        }
+
+        public String getLine(int index) {
+            int start = mLines[index * 2];
+            return new String(mData, start, mLines[index * 2 + 1] - start, UTF_8);
+        }
     }
 
     private final ServerRespond RESPOND_ERROR;
@@ -112,16 +245,41 @@ public class SMTPClient {
 
     private class ClientThread extends Thread {
 
-        private final ReentrantLock mRespondQueueLock = new ReentrantLock();
-        private final Condition mRespondQueueCondition = mRespondQueueLock.newCondition();
-        private final Queue<ServerRespond> mQueuedRespond = new LinkedList<ServerRespond>();
+        // 响应读取线程和客户端线程之间的单生产者单消费者环形队列。
+        // 槽位预先分配，读取线程直接把响应解析进槽位，客户端线程处理完一条响应、
+        // 取下一条时才把上一条的槽位还回去，所以整个过程不需要分配对象，也不需要锁。
+        private final ServerRespond[] mRespondSlots = new ServerRespond[RESPOND_SLOTS];
+        private volatile long mRespondHead = 0; // 只由客户端线程修改
+        private volatile long mRespondTail = 0; // 只由读取线程修改
+        private boolean mHoldingRespond = false;
+        private volatile Thread mWaitingConsumer = null;
+        private volatile Thread mWaitingProducer = null;
+        private volatile boolean mClosed = false;
+
+        {
+            for (int i = 0; i < mRespondSlots.length; i++) {
+                mRespondSlots[i] = new ServerRespond();
+            }
+        }
 
         private Socket mSocket = null;
-        private PrintWriter mWriter = null;
-        private BufferedReader mReader = null;
+        private SocketChannel mChannel = null;
+        // 命令先写入缓冲区，等待响应之前才真正发出
+        private ChannelOutputStream mOutput = null;
+        // STARTTLS 之后由客户端线程替换成 TLS 的输入流
+        private volatile InputStream mInput = null;
+        private TLSChannel mTLSChannel = null;
+        // 读取线程读到 STARTTLS 的 220 响应后停止读取，等待客户端线程完成握手
+        private volatile boolean mStartTlsSent = false;
+        private volatile boolean mTlsReady = false;
+        private volatile Thread mRespondThread = null;
         private Logger mLogger = Logger.getInstance();
 
         private boolean mAuthSupportLogin = false;
+        private boolean mAuthSupportPlain = false;
+        private boolean mSupportChunking = false;
+        private boolean mSupportPipelining = false;
+        private boolean mSupportStartTls = false;
 
         @Override
         public void run() {
@@ -129,11 +287,17 @@ public class SMTPClient {
             try {
                 mLogger.println("Client inited! Ready to connect to server.");
                 while (mCurrentStep != Step.STOP) {
-                    try {
-                        mStepCondition.await();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        return;
+                    if (mListener != null && mCurrentStep == Step.READY) {
+                        mListener.onReady(SMTPClient.this);
+                    }
+                    // 由 listener 驱动时只在 READY 等待
+                    if (mListener == null || mCurrentStep == Step.READY) {
+                        try {
+                            mStepCondition.await();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                            return;
+                        }
                     }
                     try {
                         doWork();
@@ -146,11 +310,20 @@ public class SMTPClient {
                     }
                 }
             } finally {
+                MailContent unfinished = mCurrentMail;
+                mCurrentMail = null;
                 mStepLock.unlock();
-                silentClose(mWriter);
-                silentClose(mReader);
+                mClosed = true;
+                silentClose(mOutput);
+                silentClose(mInput);
                 silentClose(mSocket);
                 mLogger.println("Client exit!");
+                if (mListener != null) {
+                    if (unfinished != null) {
+                        mListener.onMailSent(SMTPClient.this, unfinished, -1);
+                    }
+                    mListener.onClosed(SMTPClient.this);
+                }
             }
         }
 
@@ -185,6 +358,9 @@ public class SMTPClient {
                 case EHLO:
                     doEhlo();
                     break;
+                case STARTTLS:
+                    doStartTls();
+                    break;
                 case AUTH:
                     doAuth();
                     break;
@@ -213,12 +389,16 @@ public class SMTPClient {
         }
 
         private void doConnecting() throws IOException, RespondCodeMismatchException {
-            Socket socket = new Socket(mServerAddress, 25);
-            mWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), Charset.forName("UTF-8")));
-            mReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            new ServerRespondThread().start();
+            mChannel = SocketChannel.open(new InetSocketAddress(mServerAddress, mPort));
+            Socket socket = mChannel.socket();
+            mSocket = socket;
+            mOutput = new ChannelOutputStream(mChannel, STREAM_BUFFER_SIZE);
+            mInput = socket.getInputStream();
+            ServerRespondThread respondThread = new ServerRespondThread();
+            mRespondThread = respondThread;
+            respondThread.start();
             checkRespondCode(peekNextRespond(), SMTPDefine.SERVER_READY);
-            if (mNeedAuth) {
+            if (mNeedAuth || mSSLContext != null) {
                 mCurrentStep = Step.EHLO;
             } else {
                 mCurrentStep = Step.HELO;
@@ -239,22 +419,79 @@ public class SMTPClient {
             ServerRespond respond = peekNextRespond();
             checkRespondCode(respond, SMTPDefine.OK);
 
-            for (String s : respond.mRespond) {
-                s = s.toLowerCase();
+            mAuthSupportLogin = false;
+            mAuthSupportPlain = false;
+            mSupportChunking = false;
+            mSupportPipelining = false;
+            mSupportStartTls = false;
+            for (int i = 0; i < respond.getLineCount(); i++) {
+                String s = respond.getLine(i).toLowerCase();
                 if (s.startsWith("auth ")) {
                     if (s.contains("login")) {
                         mAuthSupportLogin = true;
                     }
-                    break;
+                    if (s.contains("plain")) {
+                        mAuthSupportPlain = true;
+                    }
+                } else if (s.equals("chunking")) {
+                    mSupportChunking = true;
+                } else if (s.equals("pipelining")) {
+                    mSupportPipelining = true;
+                } else if (s.equals("starttls")) {
+                    mSupportStartTls = true;
+                }
+            }
+
+            if (mSSLContext != null && mTLSChannel == null) {
+                if (!mSupportStartTls) {
+                    mLogger.println("Server doesn't support STARTTLS! Exit.");
+                    mCurrentStep = Step.STOP;
+                    return;
                 }
+                mCurrentStep = Step.STARTTLS;
+            } else {
+                mCurrentStep = mNeedAuth ? Step.AUTH : Step.READY;
             }
+        }
+
+        private void doStartTls() throws IOException, RespondCodeMismatchException {
+            mStartTlsSent = true;
+            writeLine("STARTTLS");
+            ServerRespond respond = peekNextRespond();
+            checkRespondCode(respond, SMTPDefine.SERVER_READY);
+
+            // 此时读取线程已经停下，握手直接在 socket 上进行
+            SSLEngine engine = mSSLContext.createSSLEngine(mServerAddress, mPort);
+            engine.setUseClientMode(true);
+            TLSChannel tls = new TLSChannel(mChannel, engine);
+            tls.handshake();
+            mLogger.println("TLS established: " + tls.getSession().getProtocol() + " "
+                    + tls.getSession().getCipherSuite() + (tls.isResumed() ? " (resumed)" : "")
+                    + ", handshake " + tls.getHandshakeNanos() / 1000 + "us");
+            mTLSChannel = tls;
+            mOutput = new ChannelOutputStream(tls, STREAM_BUFFER_SIZE);
+            mInput = Channels.newInputStream(tls);
+            mTlsReady = true;
+            LockSupport.unpark(mRespondThread);
 
-            mCurrentStep = Step.AUTH;
+            // 握手之前得到的服务器能力全部作废，重新 EHLO
+            mCurrentStep = Step.EHLO;
         }
 
         private void doAuth() throws IOException, RespondCodeMismatchException {
+            if (mAuthSupportPlain) {
+                // 用户名和密码直接放在命令中，一次往返就能完成
+                String response = Base64.encodeToString(("\0" + mUser + "\0" + mPassword).getBytes(UTF_8),
+                        Base64.NO_WRAP);
+                mOutput.writeText("AUTH PLAIN " + response + SMTPDefine.LINE_SP);
+                mLogger.println(">AUTH PLAIN (hidden)");
+                checkRespondCode(peekNextRespond(), SMTPDefine.AUTH_SUCCESS);
+
+                mCurrentStep = Step.READY;
+                return;
+            }
             if (!mAuthSupportLogin) {
-                mLogger.println("Auth doesn't support LOGIN! Exit.");
+                mLogger.println("Auth doesn't support PLAIN or LOGIN! Exit.");
                 mCurrentStep = Step.STOP;
                 return;
             }
@@ -283,34 +520,229 @@ public class SMTPClient {
 
         private void doMailFrom() throws IOException, RespondCodeMismatchException {
             writeLine("MAIL FROM: <" + mCurrentMail.from + "> ");
-            checkRespondCode(peekNextRespond(), SMTPDefine.OK);
+            if (!checkMailRespond(peekNextRespond(), SMTPDefine.OK)) {
+                return;
+            }
 
             mCurrentStep = Step.RCPT_TO;
         }
 
         private void doRcptTo() throws IOException, RespondCodeMismatchException {
             writeLine("RCPT TO: <" + mCurrentMail.to + "> ");
-            checkRespondCode(peekNextRespond(), SMTPDefine.OK);
+            if (!checkMailRespond(peekNextRespond(), SMTPDefine.OK)) {
+                return;
+            }
 
             mCurrentStep = Step.DATA;
         }
 
         private void doData() throws IOException, RespondCodeMismatchException {
-            writeLine("DATA");
-            checkRespondCode(peekNextRespond(), SMTPDefine.MAIL_START);
-            writeLine("FROM: <" + mCurrentMail.from + "> ");
-            writeLine("TO: <" + mCurrentMail.to + "> ");
-            writeLine("SUBJECT: " + mCurrentMail.subject);
-            writeLine("X-Mailer: noisyfox's mailer");
-            writeLine("MIME-Version: 1.0");
-            writeLine("Content-type: text/plain");
-            writeLine("charset=\"utf-8\"");
-            writeLine("");
-            writeLine(mCurrentMail.content);
-            writeLine(".");
-            checkRespondCode(peekNextRespond(), SMTPDefine.OK);
+            if (mCurrentMailFile != null) {
+                doDataFile();
+                return;
+            }
 
-            mCurrentStep = Step.READY;
+            MimeMessageWriter message = new MimeMessageWriter(mCurrentMail);
+            int attachments = mCurrentMail.attachments == null ? 0 : mCurrentMail.attachments.length;
+            if (mSupportChunking) {
+                BdatOutputStream out = new BdatOutputStream();
+                message.writeTo(out);
+                int rejected = out.finish();
+                mLogger.println(">(" + out.getCount() + " bytes in " + out.getChunks() + " BDAT chunks, "
+                        + attachments + " attachments)");
+                if (rejected != 0) {
+                    rejectMail(rejected);
+                    return;
+                }
+            } else {
+                writeLine("DATA");
+                if (!checkMailRespond(peekNextRespond(), SMTPDefine.MAIL_START)) {
+                    return;
+                }
+                DotStuffingOutputStream out = new DotStuffingOutputStream(mOutput);
+                message.writeTo(out);
+                out.finish();
+                mLogger.println(">(" + out.getCount() + " bytes, " + attachments + " attachments)");
+                mLogger.println(">.");
+            }
+            if (checkMailRespond(peekNextRespond(), SMTPDefine.OK)) {
+                mailDone(SMTPDefine.OK);
+            }
+        }
+
+        /**
+         * 服务器支持 CHUNKING 时用 BDAT 分块发送，每块的大小固定，
+         * 不需要 dot-stuffing，服务器也不必逐字节查找结束符。
+         * 服务器支持 PIPELINING 时连续发送所有块，最后再统一检查响应，
+         * 否则每块都等待服务器确认。
+         * 有一块被拒绝后不再发送后面的内容，已经发出的块的响应在 {@link #finish()} 中全部读完。
+         */
+        private class BdatOutputStream extends OutputStream {
+            private final byte[] mChunk = new byte[STREAM_BUFFER_SIZE];
+            private final ByteBuffer mChunkBuffer = ByteBuffer.wrap(mChunk);
+            private int mChunkSize = 0;
+            private int mChunks = 0;
+            private int mPendingResponds = 0;
+            private int mRejected = 0;
+            private long mCount = 0;
+            private byte mLast = '\n';
+
+            @Override
+            public void write(int b) throws IOException {
+                if (mChunkSize == mChunk.length) {
+                    sendChunk(false);
+                }
+                mChunk[mChunkSize++] = (byte) b;
+                mCount++;
+                mLast = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mCount += len;
+                if (len > 0) {
+                    mLast = b[off + len - 1];
+                }
+                while (len > 0) {
+                    if (mChunkSize == mChunk.length) {
+                        sendChunk(false);
+                    }
+                    int n = Math.min(len, mChunk.length - mChunkSize);
+                    System.arraycopy(b, off, mChunk, mChunkSize, n);
+                    mChunkSize += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            /**
+             * 和 DATA 一样保证内容以 CRLF 结尾，然后发送最后一块
+             *
+             * @return 0 表示之前的块都被接受，调用方还需要读取 BDAT LAST 的响应；
+             * 否则是第一个被拒绝的块的响应码，这时所有响应都已经读完
+             */
+            public int finish() throws IOException {
+                if (mLast != '\n') {
+                    // 以单独的 CR 结尾时只补 LF
+                    if (mLast != '\r') {
+                        write('\r');
+                    }
+                    write('\n');
+                }
+                if (mRejected == 0) {
+                    sendChunk(true);
+                    mPendingResponds++;
+                }
+                // 中途发现有块被拒绝时，LAST 的响应也要读掉
+                while (mPendingResponds > (mRejected == 0 ? 1 : 0)) {
+                    checkChunkRespond();
+                }
+                return mRejected;
+            }
+
+            public long getCount() {
+                return mCount;
+            }
+
+            public int getChunks() {
+                return mChunks;
+            }
+
+            private void sendChunk(boolean last) throws IOException {
+                if (mRejected != 0) {
+                    // 服务器已经不再接收这封邮件
+                    mChunkSize = 0;
+                    return;
+                }
+                // 命令行留在缓冲区中，和整块数据一起用 gathering write 发出
+                mOutput.writeText("BDAT " + mChunkSize + (last ? " LAST" : "") + SMTPDefine.LINE_SP);
+                mChunkBuffer.clear();
+                mChunkBuffer.limit(mChunkSize);
+                mOutput.write(mChunkBuffer);
+                mChunkSize = 0;
+                mChunks++;
+                if (last) {
+                    return;
+                }
+                mPendingResponds++;
+                // 未确认的块不能超过响应队列的容量，否则读取线程停止读取后双方可能互相等待
+                while (mPendingResponds > (mSupportPipelining ? RESPOND_SLOTS - 2 : 0)) {
+                    checkChunkRespond();
+                }
+            }
+
+            private void checkChunkRespond() throws IOException {
+                mPendingResponds--;
+                ServerRespond respond = peekNextRespond();
+                if (respond == RESPOND_ERROR || respond.mRespondCode == SMTPDefine.SERVICE_NOT_AVAILABLE) {
+                    throw new IOException("BDAT failed, server respond " + respond.mRespondCode);
+                }
+                if (respond.mRespondCode != SMTPDefine.OK && mRejected == 0) {
+                    mRejected = respond.mRespondCode;
+                }
+            }
+        }
+
+        private void doDataFile() throws IOException, RespondCodeMismatchException {
+            FileInputStream in = new FileInputStream(mCurrentMailFile);
+            try {
+                FileChannel file = in.getChannel();
+                long size = file.size();
+                if (mSupportChunking) {
+                    // 和 DATA 一样保证内容以 CRLF 结尾，补上的字节要算进 BDAT 的长度
+                    byte[] tail = crlfTail(file, size);
+                    writeLine("BDAT " + (size + tail.length) + " LAST");
+                    mOutput.flush();
+                    long position = 0;
+                    while (position < size) {
+                        // 使用 TLS 时 transferTo 退化为经过缓冲区的普通拷贝
+                        long n = file.transferTo(position, size - position,
+                                mTLSChannel != null ? mTLSChannel : mChannel);
+                        if (n == 0 && position >= file.size()) {
+                            // 文件在发送过程中被截短，已经声明的 BDAT 长度无法补齐
+                            throw new IOException(mCurrentMailFile.getName() + " truncated at " + position
+                                    + " bytes, expected " + size);
+                        }
+                        position += n;
+                    }
+                    mOutput.write(tail);
+                    mLogger.println(">(" + size + " bytes from " + mCurrentMailFile.getName() + ")");
+                } else {
+                    writeLine("DATA");
+                    if (!checkMailRespond(peekNextRespond(), SMTPDefine.MAIL_START)) {
+                        return;
+                    }
+                    DotStuffingOutputStream out = new DotStuffingOutputStream(mOutput);
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                    out.finish();
+                    mLogger.println(">(" + size + " bytes from " + mCurrentMailFile.getName() + ")");
+                    mLogger.println(">.");
+                }
+            } finally {
+                in.close();
+            }
+            if (checkMailRespond(peekNextRespond(), SMTPDefine.OK)) {
+                mailDone(SMTPDefine.OK);
+            }
+        }
+
+        /**
+         * @return 文件末尾缺少的换行符，以 LF 结尾时为空
+         */
+        private byte[] crlfTail(FileChannel file, long size) throws IOException {
+            if (size == 0) {
+                return new byte[0];
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (file.read(last, size - 1) != 1) {
+                throw new IOException(mCurrentMailFile.getName() + " truncated");
+            }
+            byte b = last.get(0);
+            return b == '\n' ? new byte[0] : b == '\r' ? new byte[]{'\n'} : new byte[]{'\r', '\n'};
         }
 
         private void doQuit() throws IOException, RespondCodeMismatchException {
@@ -326,132 +758,275 @@ public class SMTPClient {
             }
         }
 
-        private void writeLine(String line) throws IOException {
-            mWriter.print(line);
-            mWriter.print(SMTPDefine.LINE_SP);
-            mWriter.flush();
-            mLogger.println(">" + line);
+        /**
+         * 服务器拒绝了这封邮件时用 RSET 放弃本次事务并回到 READY，同一个连接可以继续发送下一封。
+         * 连接出错或者服务器要关闭连接（421）时仍然抛出异常
+         *
+         * @return 是否得到了期望的响应
+         */
+        private boolean checkMailRespond(ServerRespond respond, int code) throws IOException, RespondCodeMismatchException {
+            if (respond.mRespondCode == code) {
+                return true;
+            }
+            if (respond == RESPOND_ERROR || respond.mRespondCode == SMTPDefine.SERVICE_NOT_AVAILABLE) {
+                throw new RespondCodeMismatchException("server respond " + respond.mRespondCode);
+            }
+            rejectMail(respond.mRespondCode);
+            return false;
+        }
+
+        /**
+         * 邮件被拒绝，RSET 之后继续发送下一封
+         */
+        private void rejectMail(int code) throws IOException, RespondCodeMismatchException {
+            writeLine("RSET");
+            checkRespondCode(peekNextRespond(), SMTPDefine.OK);
+            mailDone(code);
+        }
 
-            if (mWriter.checkError()) {
-                throw new IOException();
+        private void mailDone(int code) {
+            MailContent mail = mCurrentMail;
+            mCurrentMail = null;
+            mCurrentMailFile = null;
+            mCurrentStep = Step.READY;
+            if (mListener != null) {
+                mListener.onMailSent(SMTPClient.this, mail, code);
             }
         }
 
+        private void writeLine(String line) throws IOException {
+            mOutput.writeText(line);
+            mOutput.writeText(SMTPDefine.LINE_SP);
+            mLogger.println(">" + line);
+        }
+
         private void writeLinePsw(String psw) throws IOException {
-            mWriter.print(psw);
-            mWriter.print(SMTPDefine.LINE_SP);
-            mWriter.flush();
+            mOutput.writeText(psw);
+            mOutput.writeText(SMTPDefine.LINE_SP);
             mLogger.println(">(hidden)");
-
-            if (mWriter.checkError()) {
-                throw new IOException();
-            }
         }
 
+        /**
+         * 取下一条响应，超时或者连接出错时返回 {@link #RESPOND_ERROR}。
+         * 返回的对象在下一次调用本方法之前有效。
+         */
         private ServerRespond peekNextRespond() {
-            mRespondQueueLock.lock();
+            // 等待响应之前把缓冲的命令发出去
             try {
-                long startTime = System.currentTimeMillis();
-                long timeMax = 10000; // 10秒超时
-                if (mQueuedRespond.isEmpty()) {
-                    while (true) {
-                        try {
-                            mRespondQueueCondition.await(timeMax, TimeUnit.MILLISECONDS);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                mOutput.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return RESPOND_ERROR;
+            }
+
+            long head = mRespondHead;
+            if (mHoldingRespond) {
+                // 上一条响应已经处理完了，归还槽位
+                mHoldingRespond = false;
+                mRespondHead = ++head;
+                Thread producer = mWaitingProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+            }
+
+            if (mRespondTail == head) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mRespondTimeout);
+                mWaitingConsumer = Thread.currentThread();
+                try {
+                    while (mRespondTail == head) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || Thread.interrupted()) {
                             return RESPOND_ERROR;
                         }
-                        if (!mQueuedRespond.isEmpty()) {
-                            break;
-                        }
-                        timeMax = 10000 - (System.currentTimeMillis() - startTime);
-                        if (timeMax <= 0) {
-                            return RESPOND_ERROR;
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                } finally {
+                    mWaitingConsumer = null;
+                }
+            }
+
+            mHoldingRespond = true;
+            ServerRespond respond = mRespondSlots[(int) head & (RESPOND_SLOTS - 1)];
+            return respond.mRespondCode < 0 ? RESPOND_ERROR : respond;
+        }
+
+        /**
+         * 只在读取线程中调用，取得下一个空闲槽位，队列满时等待客户端线程归还
+         */
+        private ServerRespond nextRespondSlot() {
+            long tail = mRespondTail;
+            if (tail - mRespondHead >= RESPOND_SLOTS) {
+                mWaitingProducer = Thread.currentThread();
+                try {
+                    while (tail - mRespondHead >= RESPOND_SLOTS) {
+                        if (mClosed) {
+                            return null;
                         }
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
                     }
+                } finally {
+                    mWaitingProducer = null;
                 }
-                return mQueuedRespond.poll();
-            } finally {
-                mRespondQueueLock.unlock();
             }
+            return mRespondSlots[(int) tail & (RESPOND_SLOTS - 1)];
         }
 
-        private void offerRespond(ServerRespond respond) {
-            mRespondQueueLock.lock();
-            try {
-                mQueuedRespond.offer(respond);
-                mRespondQueueCondition.signalAll();
-            } finally {
-                mRespondQueueLock.unlock();
+        /**
+         * 只在读取线程中调用，发布 {@link #nextRespondSlot()} 取得的槽位
+         */
+        private void publishRespond() {
+            mRespondTail = mRespondTail + 1;
+            Thread consumer = mWaitingConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        private void publishError() {
+            ServerRespond slot = nextRespondSlot();
+            if (slot != null) {
+                slot.reset(-1);
+                publishRespond();
             }
         }
 
         /**
          * 负责从流中读取服务器响应并压入响应队列供主客户端线程读取
+         * <p/>
+         * 直接在字节缓冲区上逐行解析：响应码按字节计算，多行响应只比较每行的
+         * 响应码和第四个字节，行内容原样拷贝进 {@link ServerRespond}，不生成 String。
          */
         private class ServerRespondThread extends Thread {
+            private byte[] mBuffer = new byte[4096];
+            private int mPos = 0;
+            private int mLimit = 0;
+
             @Override
             public void run() {
-                String line;
+                ServerRespond respond = null;
                 try {
-                    mainLoop:
-                    while ((line = mReader.readLine()) != null) {
-                        mLogger.println(line);
-                        int firstSpaceIndex = line.indexOf(' ');
-                        int firstDashIndex = line.indexOf('-');
-                        if (firstDashIndex == -1 && firstSpaceIndex == -1) {
+                    while (true) {
+                        int lineEnd = findLineEnd();
+                        if (lineEnd < 0) {
+                            if (!fill()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        int start = mPos;
+                        int next = lineEnd + 1;
+                        if (lineEnd > start && mBuffer[lineEnd - 1] == '\r') {
+                            lineEnd--;
+                        }
+                        mPos = next;
+                        if (mLogger != null) {
+                            mLogger.println(new String(mBuffer, start, lineEnd - start, UTF_8));
+                        }
+
+                        int code = parseCode(start, lineEnd);
+                        byte separator = lineEnd - start > 3 ? mBuffer[start + 3] : (byte) ' ';
+                        if (code < 0 || (separator != ' ' && separator != '-')
+                                || (respond != null && respond.mRespondCode != code)) {
                             // wrong!
-                            offerRespond(RESPOND_ERROR);
                             break;
-                        } else {
-                            boolean dash;
-                            dash = firstSpaceIndex == -1 || (firstDashIndex != -1 && firstSpaceIndex > firstDashIndex);
-                            int headLen = dash ? firstDashIndex : firstSpaceIndex;
-                            String codeStr = line.substring(0, headLen);
-                            int code;
-                            try {
-                                code = Integer.parseInt(codeStr);
-                            } catch (NumberFormatException e) {
-                                e.printStackTrace();
-                                offerRespond(RESPOND_ERROR);
-                                break;
+                        }
+                        if (respond == null) {
+                            respond = nextRespondSlot();
+                            if (respond == null) {
+                                return;
                             }
-                            if (dash) {
-                                LinkedList<String> respondsList = new LinkedList<String>();
-                                headLen++;
-                                respondsList.add(line.substring(headLen));
-                                String headEnd = codeStr + " ";
-                                String headContinue = codeStr + "-";
-                                while ((line = mReader.readLine()) != null) {
-                                    mLogger.println(line);
-                                    if (line.startsWith(headEnd)) {
-                                        respondsList.add(line.substring(headLen));
-                                        break;
-                                    } else if (line.startsWith(headContinue)) {
-                                        respondsList.add(line.substring(headLen));
-                                    } else {
-                                        offerRespond(RESPOND_ERROR);
-                                        break mainLoop;
-                                    }
+                            respond.reset(code);
+                        }
+                        respond.appendLine(mBuffer, Math.min(start + 4, lineEnd), lineEnd);
+                        if (separator == ' ') {
+                            publishRespond();
+                            if (mStartTlsSent) {
+                                mStartTlsSent = false;
+                                if (code == SMTPDefine.SERVER_READY && !awaitTls()) {
+                                    return;
                                 }
-                                String[] responds = new String[respondsList.size()];
-                                respondsList.toArray(responds);
-                                ServerRespond respond = new ServerRespond();
-                                respond.mRespondCode = code;
-                                respond.mRespond = responds;
-                                offerRespond(respond);
-                            } else {
-                                ServerRespond respond = new ServerRespond();
-                                respond.mRespondCode = code;
-                                respond.mRespond = new String[]{line.substring(headLen + 1)};
-                                offerRespond(respond);
                             }
+                            respond = null;
                         }
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
-                    offerRespond(RESPOND_ERROR);
                 }
+                // 出错或者连接断开，让正在等待的客户端线程立即返回
+                publishError();
+            }
+
+            /**
+             * STARTTLS 的 220 响应之后停止读取，直到客户端线程完成握手。
+             * 缓冲区中剩下的明文是在加密之前被注入的，直接丢弃
+             *
+             * @return false 表示握手失败，连接已经关闭
+             */
+            private boolean awaitTls() {
+                mPos = mLimit;
+                while (!mTlsReady) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                return true;
+            }
+
+            /**
+             * @return 当前行 '\n' 的位置，缓冲区中没有完整的行时返回 -1
+             */
+            private int findLineEnd() {
+                for (int i = mPos; i < mLimit; i++) {
+                    if (mBuffer[i] == '\n') {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            /**
+             * 把未处理的部分移到缓冲区开头再读入数据，一行放不下时扩大缓冲区
+             */
+            private boolean fill() throws IOException {
+                int remaining = mLimit - mPos;
+                if (remaining == mBuffer.length) {
+                    if (mBuffer.length >= MAX_RESPOND_LINE) {
+                        throw new IOException("respond line too long");
+                    }
+                    byte[] temp = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, mPos, temp, 0, remaining);
+                    mBuffer = temp;
+                } else if (mPos > 0) {
+                    System.arraycopy(mBuffer, mPos, mBuffer, 0, remaining);
+                }
+                mPos = 0;
+                mLimit = remaining;
+                int n = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+                if (n == -1) {
+                    return false;
+                }
+                mLimit += n;
+                return true;
+            }
+
+            /**
+             * @return 行首三位数字组成的响应码，格式不对时返回 -1
+             */
+            private int parseCode(int start, int end) {
+                if (end - start < 3) {
+                    return -1;
+                }
+                int code = 0;
+                for (int i = start; i < start + 3; i++) {
+                    int digit = mBuffer[i] - '0';
+                    if (digit < 0 || digit > 9) {
+                        return -1;
+                    }
+                    code = code * 10 + digit;
+                }
+                return code;
             }
         }
 
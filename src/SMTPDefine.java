@@ -12,7 +12,15 @@ public class SMTPDefine {
     public static final int BAD_ARGUMENT = 501;
     public static final int UNKNOWN_CMD = 502;
     public static final int AUTH_FAILED = 454;
+    public static final int SERVICE_NOT_AVAILABLE = 421;
+    public static final int LOCAL_ERROR = 451;
+    public static final int INSUFFICIENT_STORAGE = 452;
+    public static final int MESSAGE_TOO_BIG = 552;
+    public static final int MAILBOX_UNAVAILABLE = 550;
+    public static final int TRANSACTION_FAILED = 554;
 
 
+    public static final int DEFAULT_PORT = 25;
+
     public static final String LINE_SP = "\r\n";
 }
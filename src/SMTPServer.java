@@ -1,14 +1,27 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Channels;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,42 +33,292 @@ public class SMTPServer {
 
     private final MailBox mMailBox;
     private final String mServerName;
+    private final int mPort;
     private final boolean mNeedAuth;
-    private final String mUser;
-    private final String mPassword;
+    private final CredentialStore mCredentials;
 
     public SMTPServer(MailBox mailBox, String serverName) {
-        mMailBox = mailBox;
-        mServerName = serverName;
-        mNeedAuth = false;
-        mUser = mPassword = null;
-
-        startThread();
+        this(mailBox, serverName, SMTPDefine.DEFAULT_PORT, null);
     }
 
     public SMTPServer(MailBox mailBox, String serverName, String user, String password) {
+        this(mailBox, serverName, SMTPDefine.DEFAULT_PORT, singleUser(user, password));
+    }
+
+    /**
+     * @param credentials 客户端必须先通过 AUTH 校验才能发信
+     */
+    public SMTPServer(MailBox mailBox, String serverName, CredentialStore credentials) {
+        this(mailBox, serverName, SMTPDefine.DEFAULT_PORT, credentials);
+    }
+
+    /**
+     * @param port        监听的端口
+     * @param credentials 不为 null 时客户端必须先通过 AUTH 校验才能发信
+     */
+    public SMTPServer(MailBox mailBox, String serverName, int port, CredentialStore credentials) {
         mMailBox = mailBox;
         mServerName = serverName;
-        mNeedAuth = true;
-        mUser = user;
-        mPassword = password;
+        mPort = port;
+        mNeedAuth = credentials != null;
+        mCredentials = credentials;
 
         startThread();
     }
 
+    private static CredentialStore singleUser(String user, String password) {
+        HashedCredentialStore store = new HashedCredentialStore();
+        store.setPassword(user, password);
+        return new CachingCredentialStore(store, 16, 10 * 60 * 1000);
+    }
+
     private ServerThread mThread;
 
+    // 所有连接共用一个定时线程检查超时
+    private final TimingWheel mTimer = new TimingWheel("SMTPServer-timer", 500, 512);
+    private final AtomicLong mTimedOutSessions = new AtomicLong();
+    private static final long CLOCK_ORIGIN = System.nanoTime();
+
+    // 默认值取自 RFC 5321 4.5.3.2
+    private volatile long mGreetingTimeout = 5 * 60 * 1000;
+    private volatile long mCommandTimeout = 5 * 60 * 1000;
+    private volatile long mDataBlockTimeout = 3 * 60 * 1000;
+    private volatile long mDataTerminationTimeout = 10 * 60 * 1000;
+
+    /**
+     * 设置各阶段的超时时间，单位毫秒，对之后建立的连接以及连接进入的下一阶段生效
+     *
+     * @param greeting        发出 220 之后等待 HELO/EHLO
+     * @param command         等待下一条命令
+     * @param dataBlock       接收 DATA/BDAT 内容时两次读取之间的间隔
+     * @param dataTermination 从 DATA 或第一个 BDAT 开始到整封邮件接收完毕
+     */
+    public void setTimeouts(long greeting, long command, long dataBlock, long dataTermination) {
+        mGreetingTimeout = greeting;
+        mCommandTimeout = command;
+        mDataBlockTimeout = dataBlock;
+        mDataTerminationTimeout = dataTermination;
+    }
+
+    /**
+     * @return 因为超时被关闭的连接数
+     */
+    public long getTimedOutSessions() {
+        return mTimedOutSessions.get();
+    }
+
+    /**
+     * 超时的截止时间用单调时钟，不受系统时间调整影响。从类加载时算起，
+     * 所以总是正数，0 和 Long.MAX_VALUE 仍然可以用来表示没有截止时间
+     */
+    private static long monotonicMillis() {
+        return (System.nanoTime() - CLOCK_ORIGIN) / 1000000;
+    }
+
+    // 准入控制，0 表示不限制，默认不限制
+    private volatile int mMaxSessions = 0;
+    private volatile int mMaxSessionsPerIp = 0;
+    private volatile int mMaxPendingSpills = 0;
+
+    private final ReentrantLock mSessionLock = new ReentrantLock();
+    private final HashMap<InetAddress, Integer> mSessionsPerIp = new HashMap<InetAddress, Integer>();
+    private int mActiveSessions = 0;
+
+    private final AtomicLong mAcceptedSessions = new AtomicLong();
+    private final AtomicLong mRejectedSessions = new AtomicLong();
+    private final AtomicLong mDeferredMails = new AtomicLong();
+
+    /**
+     * 设置准入控制，0 表示不限制，默认都不限制
+     *
+     * @param maxSessions      同时处理的连接总数，超出的连接直接以 421 拒绝
+     * @param maxSessionsPerIp 同一个 IP 同时建立的连接数，超出同样以 421 拒绝
+     * @param maxPendingSpills 收件箱积压的待写入淘汰文件的邮件数超过该值时，
+     *                         MAIL 命令以 452 暂缓
+     */
+    public void setAdmission(int maxSessions, int maxSessionsPerIp, int maxPendingSpills) {
+        mMaxSessions = maxSessions;
+        mMaxSessionsPerIp = maxSessionsPerIp;
+        mMaxPendingSpills = maxPendingSpills;
+    }
+
+    public long getAcceptedSessions() {
+        return mAcceptedSessions.get();
+    }
+
+    public long getRejectedSessions() {
+        return mRejectedSessions.get();
+    }
+
+    public long getDeferredMails() {
+        return mDeferredMails.get();
+    }
+
+    public int getActiveSessions() {
+        mSessionLock.lock();
+        try {
+            return mActiveSessions;
+        } finally {
+            mSessionLock.unlock();
+        }
+    }
+
+    /**
+     * @return 是否接受来自 address 的新连接，接受时计入连接数
+     */
+    private boolean admitSession(InetAddress address) {
+        mSessionLock.lock();
+        try {
+            int maxSessions = mMaxSessions;
+            int maxSessionsPerIp = mMaxSessionsPerIp;
+            Integer count = mSessionsPerIp.get(address);
+            int perIp = count == null ? 0 : count;
+            if ((maxSessions > 0 && mActiveSessions >= maxSessions)
+                    || (maxSessionsPerIp > 0 && perIp >= maxSessionsPerIp)) {
+                return false;
+            }
+            mActiveSessions++;
+            mSessionsPerIp.put(address, perIp + 1);
+            return true;
+        } finally {
+            mSessionLock.unlock();
+        }
+    }
+
+    private void releaseSession(InetAddress address) {
+        mSessionLock.lock();
+        try {
+            mActiveSessions--;
+            Integer count = mSessionsPerIp.get(address);
+            if (count == null || count <= 1) {
+                mSessionsPerIp.remove(address);
+            } else {
+                mSessionsPerIp.put(address, count - 1);
+            }
+        } finally {
+            mSessionLock.unlock();
+        }
+    }
+
+    // 速率限制，null 表示不限制
+    private static final int RATE_LIMIT_KEYS = 64 * 1024;
+    private volatile RateLimiter<String> mMessageLimiter = null;
+    private volatile RateLimiter<String> mRecipientLimiter = null;
+    private volatile RateLimiter<InetAddress> mConnectionLimiter = null;
+    private final AtomicLong mRateLimited = new AtomicLong();
+
+    /**
+     * 模拟邮件服务商的速率限制，0 表示不限制。超出时连接以 421 拒绝，MAIL/RCPT 以 451 暂缓
+     *
+     * @param messagesPerMinute    同一个发件人每分钟的 MAIL 命令数
+     * @param recipientsPerMinute  同一个发件人每分钟的 RCPT 命令数
+     * @param connectionsPerSecond 同一个 IP 每秒新建的连接数
+     */
+    public void setRateLimits(int messagesPerMinute, int recipientsPerMinute, int connectionsPerSecond) {
+        mMessageLimiter = messagesPerMinute > 0
+                ? new RateLimiter<String>(messagesPerMinute, 60 * 1000, RATE_LIMIT_KEYS) : null;
+        mRecipientLimiter = recipientsPerMinute > 0
+                ? new RateLimiter<String>(recipientsPerMinute, 60 * 1000, RATE_LIMIT_KEYS) : null;
+        mConnectionLimiter = connectionsPerSecond > 0
+                ? new RateLimiter<InetAddress>(connectionsPerSecond, 1000, RATE_LIMIT_KEYS) : null;
+    }
+
+    /**
+     * @return 因为速率限制被拒绝的连接和命令数
+     */
+    public long getRateLimited() {
+        return mRateLimited.get();
+    }
+
+    // 邮件大小上限，0 表示只受数组长度的限制
+    private volatile int mMaxMessageSize = 0;
+
+    /**
+     * 设置邮件大小的上限，单位字节，超出的邮件以 552 拒绝，0 表示不限制
+     */
+    public void setMaxMessageSize(int bytes) {
+        mMaxMessageSize = bytes;
+    }
+
+    private volatile SSLContext mSSLContext = null;
+
+    /**
+     * 设置 STARTTLS 使用的 context，null 表示不支持 STARTTLS，对之后建立的连接生效。
+     * 会话缓存属于 context，见 {@link TLSContexts}
+     */
+    public void setSSLContext(SSLContext context) {
+        mSSLContext = context;
+    }
+
+    private volatile RelayQueue mRelay = null;
+    private volatile Set<String> mLocalDomains = new HashSet<String>();
+
+    /**
+     * 打开转发：收件人的域名不在 localDomains 中的邮件不放入收件箱，而是写入 relay 的队列，
+     * 写入成功后才确认接收。relay 没有路由或者只有默认路由而会话没有认证的收件人以 550 拒绝，
+     * 见 {@link RelayQueue#canRelay(String, boolean)}。relay 为 null 时关闭转发
+     */
+    public void setRelay(RelayQueue relay, String... localDomains) {
+        HashSet<String> domains = new HashSet<String>();
+        for (String domain : localDomains) {
+            domains.add(domain.toLowerCase());
+        }
+        mLocalDomains = domains;
+        mRelay = relay;
+    }
+
+    private volatile TraceRecorder mTraceRecorder = null;
+
+    /**
+     * 之后建立的会话收发的数据都记录到 recorder 中，null 表示停止记录。
+     * 已经建立的会话不受影响，recorder 由调用方关闭
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        mTraceRecorder = recorder;
+    }
+
+    private volatile FaultPolicy mFaultPolicy = null;
+
+    /**
+     * 按 policy 注入故障，null 表示不注入，对之后建立的连接生效。policy 由调用方停止
+     */
+    public void setFaultPolicy(FaultPolicy policy) {
+        mFaultPolicy = policy;
+    }
+
+    private ServerMetrics mMetrics;
+
+    public ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 在本机的 port 端口上以文本格式提供统计数据，地址为 http://127.0.0.1:port/metrics
+     */
+    public void startMetricsEndpoint(int port) throws IOException {
+        mMetrics.startHttpEndpoint(port);
+    }
+
     private void startThread() {
+        mMetrics = new ServerMetrics(this, mMailBox);
+        mMetrics.registerMBean(mServerName);
         mThread = new ServerThread();
         mThread.start();
     }
 
     public void stop() {
         mThread.stopServer();
+        mTimer.stop();
+        mMetrics.stop();
     }
 
     private class ServerThread extends Thread {
+        // 每个连接占一个线程，需要限制线程数时用 setAdmission 限制连接数
         private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+        private final byte[] mRejectReply = (SMTPDefine.SERVICE_NOT_AVAILABLE + " " + mServerName
+                + " Too many connections, try again later" + SMTPDefine.LINE_SP).getBytes();
+        private final byte[] mRateLimitReply = (SMTPDefine.SERVICE_NOT_AVAILABLE + " " + mServerName
+                + " Connection rate limit exceeded, try again later" + SMTPDefine.LINE_SP).getBytes();
 
         private ServerSocketChannel serverSocketChannel;
         private Selector selector;
@@ -71,7 +334,7 @@ public class SMTPServer {
                 selector = Selector.open();
                 serverSocketChannel = ServerSocketChannel.open();
                 serverSocketChannel.configureBlocking(false);
-                serverSocketChannel.socket().bind(new InetSocketAddress(25));
+                serverSocketChannel.socket().bind(new InetSocketAddress(mPort));
                 serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
                 while (true) {
                     selector.select();
@@ -83,10 +346,9 @@ public class SMTPServer {
                         if (key.isAcceptable()) {
                             ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
                             sc = ssc.accept();
-                            mThreadPool.execute(new ServerWorker(sc));
-                        } else if (key.isReadable()) {
-                            sc = (SocketChannel) key.channel();
-                            mThreadPool.execute(new ServerWorker(sc));
+                            if (sc != null) {
+                                accept(sc);
+                            }
                         }
                         iter.remove();
                     }
@@ -99,6 +361,45 @@ public class SMTPServer {
                 mThreadPool.shutdownNow();
             }
         }
+
+        private void accept(SocketChannel sc) {
+            InetAddress address = sc.socket().getInetAddress();
+            RateLimiter<InetAddress> limiter = mConnectionLimiter;
+            if (limiter != null && !limiter.tryAcquire(address)) {
+                mRejectedSessions.incrementAndGet();
+                mRateLimited.incrementAndGet();
+                reject(sc, mRateLimitReply);
+                return;
+            }
+            if (!admitSession(address)) {
+                mRejectedSessions.incrementAndGet();
+                reject(sc, mRejectReply);
+                return;
+            }
+            mAcceptedSessions.incrementAndGet();
+            try {
+                mThreadPool.execute(new ServerWorker(sc, address));
+            } catch (IOException e) {
+                e.printStackTrace();
+                releaseSession(address);
+                silentClose(sc);
+            }
+        }
+
+        /**
+         * 直接在接收线程中以非阻塞方式写出 421 并关闭连接，不占用工作线程。
+         * 这一行远小于 socket 发送缓冲区，写不完的情况直接放弃。
+         */
+        private void reject(SocketChannel sc, byte[] reply) {
+            try {
+                sc.configureBlocking(false);
+                sc.write(ByteBuffer.wrap(reply));
+            } catch (IOException e) {
+                // 对方已经断开了
+            } finally {
+                silentClose(sc);
+            }
+        }
     }
 
     private void silentClose(Selector selector) {
@@ -111,16 +412,65 @@ public class SMTPServer {
         }
     }
 
+    private static final byte[] DATA_END = {'\r', '\n', '.', '\r', '\n'};
+
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+    private static final int INPUT_BUFFER_SIZE = 8192;
+    private static final int MAX_KEPT_DATA_BUFFER = 1024 * 1024;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * 可以直接访问内部数组的 ByteArrayOutputStream，省掉 toByteArray() 的一次拷贝
+     */
+    private static class MessageBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
     private class ServerWorker implements Runnable {
         private final Pattern mPattern_mailFrom = Pattern.compile("mail +from: +<(.*)> *");
         private final Pattern mPattern_rcptTo = Pattern.compile("rcpt +to: +<(.*)> *");
         private final Pattern mPattern_email = Pattern.compile("^\\w+(?:\\.\\w+)*@\\w+(?:\\.\\w+)+$");
+        private final Pattern mPattern_bdat = Pattern.compile("bdat +([0-9]{1,10})( +last)? *");
 
         private final Socket mSocket;
         private final SocketChannel mSocketChannel;
+        private final InetAddress mRemoteAddress;
 
-        private PrintWriter mWriter;
-        private BufferedReader mReader;
+        // 响应先写入缓冲区，在读取下一批输入之前才统一发出，
+        // 客户端使用 PIPELINING 时一组命令的响应只需要一次写
+        private ChannelOutputStream mOutput;
+        private InputStream mInput;
+        private final SSLContext mSSLContext = SMTPServer.this.mSSLContext;
+        private TLSChannel mTLSChannel = null;
+        private final TraceRecorder mTrace = SMTPServer.this.mTraceRecorder;
+        private final int mTraceSession;
+        private final FaultPolicy mFaults = SMTPServer.this.mFaultPolicy;
+
+        // 输入输出缓冲区从 BufferPool 借出，连接结束时归还。输出用直接缓冲区，
+        // 输入要按字节解析，用堆缓冲区的底层数组
+        private final ByteBuffer mOutBuffer;
+        private final ByteBuffer mInLease;
+
+        // 按字节读取输入，命令行在这里解码，DATA/BDAT 内容直接从这里整块拷贝
+        private final byte[] mInBuffer;
+        private int mInPos = 0;
+        private int mInLimit = 0;
+        private final ByteArrayOutputStream mLineBuffer = new ByteArrayOutputStream(128);
+        // DATA 的内容，同一个连接的多封邮件共用
+        private MessageBuffer mDataBuffer = new MessageBuffer();
+
+        // BDAT 分块累计的邮件内容
+        private byte[] mChunkData = null;
+        private MimeParser mChunkParser = null;
+        private int mChunkSize = 0;
+
+        // 邮件正文（顶层头部之后的部分）的摘要，随数据到达逐段计算，见 MailBody。
+        // 正文从 mHashStart 开始，已经计算到 mHashed，-1 表示还没有遇到正文
+        private final MessageDigest mBodyDigest = MailBody.newDigest();
+        private int mHashStart = -1;
+        private int mHashed = 0;
 
         private boolean mHELOSend = false;
         private boolean mEHLOSend = false;
@@ -128,65 +478,163 @@ public class SMTPServer {
         private boolean mAuthSucc = false;
         private MailContent mCurrentMail = null;
 
-        public ServerWorker(SocketChannel socketChannel) throws IOException {
+        // 超时检查：读取之前记下截止时间，读完清零，每个命令只是两次字段写入。
+        // 时间轮中每个连接只有一个检查任务，到期时截止时间还没到就按剩余时间重新排队
+        private volatile long mReadTimeout = mGreetingTimeout;
+        private volatile long mReadDeadline = 0;
+        private long mDataDeadline = Long.MAX_VALUE;
+        private volatile boolean mFinished = false;
+        private volatile boolean mTimedOut = false;
+        private TimingWheel.Timeout mTimeoutCheck = null;
+        private final Runnable mTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                checkTimeout();
+            }
+        };
+
+        // 当前命令要注入的故障
+        private FaultPolicy.Fault mFault = null;
+        // 被推迟的响应留在 mOutput 中，到 mHoldUntil 才由定时任务发出，期间的输出要持有 mOutputLock。
+        // 后面的响应排在它之后，顺序不变。没有设置故障策略时不加锁
+        private final ReentrantLock mOutputLock = new ReentrantLock();
+        private long mHoldUntil = 0;
+        private boolean mHolding = false;
+        private boolean mCloseAfterFlush = false;
+        private volatile boolean mDropped = false;
+        private final Runnable mReleaseTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mThread.mThreadPool.execute(mFlushTask);
+                } catch (RejectedExecutionException e) {
+                    // 服务器已经停止
+                }
+            }
+        };
+        // 写 socket 可能阻塞，不能在定时线程中执行
+        private final Runnable mFlushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushHeldOutput();
+            }
+        };
+        // 限制 DATA/BDAT 内容的接收速度，0 表示不限制
+        private int mReadBandwidth = 0;
+        private long mThrottleStart;
+        private long mThrottleBytes;
+
+        public ServerWorker(SocketChannel socketChannel, InetAddress remoteAddress) throws IOException {
             mSocketChannel = socketChannel;
+            mRemoteAddress = remoteAddress;
             mSocketChannel.configureBlocking(true);
             mSocket = mSocketChannel.socket();
-            mWriter = new PrintWriter(new OutputStreamWriter(mSocket.getOutputStream(), "US-ASCII"));
-            mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), "UTF-8"));
+            mInput = mSocket.getInputStream();
+            mOutBuffer = BufferPool.DIRECT.acquire(OUTPUT_BUFFER_SIZE);
+            mInLease = BufferPool.HEAP.acquire(INPUT_BUFFER_SIZE);
+            mInBuffer = mInLease.array();
+            mOutput = new ChannelOutputStream(mSocketChannel, mOutBuffer);
+            mTraceSession = mTrace != null ? mTrace.openSession() : -1;
         }
 
         @Override
         public void run() {
+            mTimeoutCheck = mTimer.schedule(mTimeoutTask, mReadTimeout);
+            boolean quit = false;
             try {
                 doWork();
+                quit = true;
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!mTimedOut && !mDropped) {
+                    e.printStackTrace();
+                }
             } finally {
-                silentClose(mWriter);
-                silentClose(mReader);
-                silentClose(mSocketChannel);
+                mFinished = true;
+                mTimeoutCheck.cancel();
+                if (!deferClose(quit)) {
+                    closeSession();
+                }
+            }
+        }
+
+        private void closeSession() {
+            silentClose(mOutput);
+            silentClose(mInput);
+            silentClose(mSocketChannel);
+            BufferPool.DIRECT.release(mOutBuffer);
+            BufferPool.HEAP.release(mInLease);
+            releaseSession(mRemoteAddress);
+            if (mTrace != null) {
+                mTrace.closeSession(mTraceSession);
             }
         }
 
         private void doWork() throws IOException {
             writeLine(SMTPDefine.SERVER_READY, mServerName + " Noisyfox SMTP Server Simulator");
-            // 等待客户端helo
-            while (!mHELOSend && !mEHLOSend) {
-                String line = nextLine();
-                if (startWithIgnoreCase(line, "helo")) {
-                    doHelo(line);
-                } else if (startWithIgnoreCase(line, "ehlo")) {
-                    doEhlo(line);
-                } else if (startWithIgnoreCase(line, "quit")) {
-                    doQuit();
-                    return;
-                } else {
-                    writeLine(SMTPDefine.WRONG_SEQUENCE, "Error: send HELO/EHLO first");
-                }
-                if (Thread.interrupted()) {
-                    return;
+            while (true) {
+                // 等待客户端helo，STARTTLS 之后也要回到这里
+                while (!mHELOSend && !mEHLOSend) {
+                    String line = nextLine();
+                    long start = System.nanoTime();
+                    if (mFaults != null && injectFault(line)) {
+                        // 注入的故障代替了这条命令的响应
+                    } else if (startWithIgnoreCase(line, "helo")) {
+                        doHelo(line);
+                    } else if (startWithIgnoreCase(line, "ehlo")) {
+                        doEhlo(line);
+                    } else if (startWithIgnoreCase(line, "bdat")) {
+                        // 后面跟着的数据块不是命令
+                        rejectBdat(line, "Error: send HELO/EHLO first");
+                    } else if (startWithIgnoreCase(line, "quit")) {
+                        doQuit();
+                        mMetrics.recordCommand(line, start);
+                        return;
+                    } else {
+                        writeLine(SMTPDefine.WRONG_SEQUENCE, "Error: send HELO/EHLO first");
+                    }
+                    delayReply();
+                    mMetrics.recordCommand(line, start);
+                    if (Thread.interrupted()) {
+                        return;
+                    }
                 }
-            }
-            while (!Thread.interrupted()) {
-                String line = nextLine();
-                if (startWithIgnoreCase(line, "helo")) {
-                    doHelo(line);
-                } else if (startWithIgnoreCase(line, "ehlo")) {
-                    doEhlo(line);
-                } else if (startWithIgnoreCase(line, "auth")) {
-                    doAuth(line);
-                } else if (startWithIgnoreCase(line, "mail")) {
-                    doMail(line);
-                } else if (startWithIgnoreCase(line, "rcpt")) {
-                    doRcpt(line);
-                } else if (startWithIgnoreCase(line, "data")) {
-                    doData();
-                } else if (startWithIgnoreCase(line, "quit")) {
-                    doQuit();
-                    return;
-                } else {
-                    writeLine(SMTPDefine.UNKNOWN_CMD, "Error: command not implemented");
+                mReadTimeout = mCommandTimeout;
+                // STARTTLS 成功后 HELO/EHLO 的状态被清除，退出这个循环重新等待 EHLO
+                while (mHELOSend || mEHLOSend) {
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                    String line = nextLine();
+                    long start = System.nanoTime();
+                    if (mFaults != null && injectFault(line)) {
+                        // 注入的故障代替了这条命令的响应
+                    } else if (startWithIgnoreCase(line, "helo")) {
+                        doHelo(line);
+                    } else if (startWithIgnoreCase(line, "ehlo")) {
+                        doEhlo(line);
+                    } else if (startWithIgnoreCase(line, "starttls")) {
+                        doStartTls(line);
+                    } else if (startWithIgnoreCase(line, "auth")) {
+                        doAuth(line);
+                    } else if (startWithIgnoreCase(line, "mail")) {
+                        doMail(line);
+                    } else if (startWithIgnoreCase(line, "rcpt")) {
+                        doRcpt(line);
+                    } else if (startWithIgnoreCase(line, "data")) {
+                        doData();
+                    } else if (startWithIgnoreCase(line, "bdat")) {
+                        doBdat(line);
+                    } else if (startWithIgnoreCase(line, "rset")) {
+                        doRset();
+                    } else if (startWithIgnoreCase(line, "quit")) {
+                        doQuit();
+                        mMetrics.recordCommand(line, start);
+                        return;
+                    } else {
+                        writeLine(SMTPDefine.UNKNOWN_CMD, "Error: command not implemented");
+                    }
+                    delayReply();
+                    mMetrics.recordCommand(line, start);
                 }
             }
         }
@@ -204,61 +652,161 @@ public class SMTPServer {
             if (!startWithIgnoreCase(cmd, "ehlo ") || cmd.substring(5).trim().isEmpty()) {
                 writeLine(SMTPDefine.BAD_ARGUMENT, "Syntax: HELO hostname");
             } else {
-                writeLines(SMTPDefine.OK, new String[]{
-                        mServerName, "AUTH LOGIN", "AUTH=LOGIN", "PIPELINING", "8BITMIME"
-                });
+                String[] extensions = {
+                        mServerName, "AUTH PLAIN LOGIN", "AUTH=PLAIN LOGIN", "PIPELINING", "8BITMIME", "CHUNKING", "STARTTLS"
+                };
+                if (mSSLContext == null || mTLSChannel != null) {
+                    extensions = Arrays.copyOf(extensions, extensions.length - 1);
+                }
+                writeLines(SMTPDefine.OK, extensions);
                 mEHLOSend = true;
             }
         }
 
+        private void doStartTls(String cmd) throws IOException {
+            if (mSSLContext == null || mTLSChannel != null) {
+                writeLine(SMTPDefine.UNKNOWN_CMD, "Error: command not implemented");
+                return;
+            }
+            if (!"starttls".equalsIgnoreCase(cmd.trim())) {
+                writeLine(SMTPDefine.BAD_ARGUMENT, "Syntax: STARTTLS");
+                return;
+            }
+            writeLine(SMTPDefine.SERVER_READY, "Ready to start TLS");
+            flushOutput();
+            // 跟在 STARTTLS 后面的明文不能带进 TLS 会话，否则就是 RFC 3207 第 5 节说的命令注入
+            mInPos = mInLimit;
+
+            SSLEngine engine = mSSLContext.createSSLEngine(mRemoteAddress.getHostAddress(), mSocket.getPort());
+            engine.setUseClientMode(false);
+            TLSChannel tls = new TLSChannel(mSocketChannel, engine);
+            mReadDeadline = monotonicMillis() + mReadTimeout;
+            try {
+                tls.handshake();
+            } finally {
+                mReadDeadline = 0;
+            }
+            mMetrics.recordHandshake(tls.getHandshakeNanos(), tls.isResumed());
+            if (mTrace != null) {
+                mTrace.recordStartTls(mTraceSession);
+            }
+            mTLSChannel = tls;
+            lockOutput();
+            try {
+                mOutput = new ChannelOutputStream(tls, mOutBuffer);
+            } finally {
+                unlockOutput();
+            }
+            mInput = Channels.newInputStream(tls);
+
+            // 握手之前得到的信息全部作废，客户端需要重新 EHLO
+            mHELOSend = false;
+            mEHLOSend = false;
+            mAuthSucc = false;
+            mCurrentMail = null;
+            discardChunks();
+        }
+
         private void doAuth(String cmd) throws IOException {
-            if (!startWithIgnoreCase(cmd, "auth ")) {
+            String[] args = cmd.trim().split(" +");
+            if (args.length < 2 || args.length > 3) {
                 writeLine(SMTPDefine.UNKNOWN_CMD, "Error: auth command not implemented");
                 return;
             }
-            String authCmd = cmd.substring(5).trim();
-            if (!"login".equalsIgnoreCase(authCmd)) {
+            String mechanism = args[1];
+            String initialResponse = args.length == 3 ? args[2] : null;
+            if ("plain".equalsIgnoreCase(mechanism)) {
+                doAuthPlain(initialResponse);
+            } else if ("login".equalsIgnoreCase(mechanism) && initialResponse == null) {
+                doAuthLogin();
+            } else {
                 writeLine(SMTPDefine.UNKNOWN_CMD, "Error: auth command not implemented");
+            }
+        }
+
+        /**
+         * RFC 4616，客户端一般在命令中直接带上 authzid\0authcid\0passwd，只需要一次往返
+         */
+        private void doAuthPlain(String initialResponse) throws IOException {
+            mAuthSucc = false;
+
+            String response = initialResponse;
+            if (response == null) {
+                writeLine(SMTPDefine.WAIT_INPUT, "");
+                response = nextLine();
+            }
+            if ("*".equals(response)) {
+                writeLine(SMTPDefine.BAD_ARGUMENT, "Error: authentication cancelled");
                 return;
             }
+            String[] fields;
+            try {
+                // RFC 4954 第 4 节：长度为 0 的初始响应写成一个 "="
+                byte[] decoded = "=".equals(response) ? new byte[0] : Base64.decode(response, Base64.DEFAULT);
+                fields = new String(decoded, "UTF-8").split("\0", -1);
+            } catch (IllegalArgumentException e) {
+                authFailed();
+                return;
+            }
+            // 不支持以其他用户的身份登录
+            if (fields.length != 3 || !(fields[0].isEmpty() || fields[0].equals(fields[1]))) {
+                authFailed();
+                return;
+            }
+            checkCredentials(fields[1], fields[2]);
+        }
 
+        private void doAuthLogin() throws IOException {
             mAuthSucc = false;
 
+            String user;
+            String psw;
             writeLine(SMTPDefine.WAIT_INPUT, "VXNlcm5hbWU6");
-            cmd = nextLine();
+            String cmd = nextLine();
             try {
-                String user = new String(Base64.decode(cmd, Base64.DEFAULT), "US-ASCII");
-                if (!mUser.equals(user)) {
-                    writeLine(SMTPDefine.AUTH_FAILED, "Error: authentication failed, system busy");
-                    return;
-                }
-            } catch (Exception e) {
-                writeLine(SMTPDefine.AUTH_FAILED, "Error: authentication failed, system busy");
+                user = new String(Base64.decode(cmd, Base64.DEFAULT), "UTF-8");
+            } catch (IllegalArgumentException e) {
+                authFailed();
                 return;
             }
 
             writeLine(SMTPDefine.WAIT_INPUT, "UGFzc3dvcmQ6");
             cmd = nextLine();
             try {
-                String psw = new String(Base64.decode(cmd, Base64.DEFAULT), "US-ASCII");
-                if (!mPassword.equals(psw)) {
-                    writeLine(SMTPDefine.AUTH_FAILED, "Error: authentication failed, system busy");
-                    return;
-                }
-            } catch (Exception e) {
-                writeLine(SMTPDefine.AUTH_FAILED, "Error: authentication failed, system busy");
+                psw = new String(Base64.decode(cmd, Base64.DEFAULT), "UTF-8");
+            } catch (IllegalArgumentException e) {
+                authFailed();
                 return;
             }
+            checkCredentials(user, psw);
+        }
 
+        private void checkCredentials(String user, String password) throws IOException {
+            if (mCredentials == null || !mCredentials.verify(user, password)) {
+                authFailed();
+                return;
+            }
             writeLine(SMTPDefine.AUTH_SUCCESS, "Authentication successful");
             mAuthSucc = true;
         }
 
+        private void authFailed() throws IOException {
+            mMetrics.recordAuthFailure();
+            writeLine(SMTPDefine.AUTH_FAILED, "Error: authentication failed, system busy");
+        }
+
         private void doMail(String cmd) throws IOException {
             if (mNeedAuth && !mAuthSucc) {
                 writeLine(SMTPDefine.WRONG_SEQUENCE, "Error: need EHLO and AUTH first !");
                 return;
             }
+            int maxPendingSpills = mMaxPendingSpills;
+            if (maxPendingSpills > 0 && mMailBox.getPendingSpillCount() > maxPendingSpills) {
+                // 收件箱来不及处理，让客户端稍后重试
+                mDeferredMails.incrementAndGet();
+                writeLine(SMTPDefine.INSUFFICIENT_STORAGE, "Error: mailbox busy, try again later");
+                return;
+            }
 
             cmd = cmd.toLowerCase();
             Matcher matcher = mPattern_mailFrom.matcher(cmd);
@@ -272,8 +820,16 @@ public class SMTPServer {
                 writeLine(SMTPDefine.BAD_ARGUMENT, "Bad address syntax");
                 return;
             }
+            RateLimiter<String> limiter = mMessageLimiter;
+            if (limiter != null && !limiter.tryAcquire(address)) {
+                mRateLimited.incrementAndGet();
+                writeLine(SMTPDefine.LOCAL_ERROR, "Error: too many messages from " + address + ", try again later");
+                return;
+            }
 
             writeLine(SMTPDefine.OK, "Ok");
+            // 新的事务，上一个没有 LAST 的 BDAT 事务作废
+            discardChunks();
             mCurrentMail = new MailContent();
             mCurrentMail.from = address;
         }
@@ -296,6 +852,18 @@ public class SMTPServer {
                 writeLine(SMTPDefine.BAD_ARGUMENT, "Bad address syntax");
                 return;
             }
+            RelayQueue relay = mRelay;
+            String domain = address.substring(address.indexOf('@') + 1);
+            if (relay != null && !mLocalDomains.contains(domain) && !relay.canRelay(domain, mAuthSucc)) {
+                writeLine(SMTPDefine.MAILBOX_UNAVAILABLE, "Error: relay access denied");
+                return;
+            }
+            RateLimiter<String> limiter = mRecipientLimiter;
+            if (limiter != null && !limiter.tryAcquire(mCurrentMail.from)) {
+                mRateLimited.incrementAndGet();
+                writeLine(SMTPDefine.LOCAL_ERROR, "Error: too many recipients from " + mCurrentMail.from + ", try again later");
+                return;
+            }
 
             writeLine(SMTPDefine.OK, "Ok");
             mCurrentMail.to = address;
@@ -306,78 +874,565 @@ public class SMTPServer {
                 writeLine(SMTPDefine.WRONG_SEQUENCE, "Error: need RCPT command");
                 return;
             }
+            if (mChunkParser != null) {
+                writeLine(SMTPDefine.WRONG_SEQUENCE, "Error: DATA not allowed after BDAT");
+                return;
+            }
             writeLine(SMTPDefine.MAIL_START, "End data with <CR><LF>.<CR><LF>");
+            beginData();
+            startThrottle();
+            long dataStart = System.nanoTime();
 
-            StringBuilder sb = new StringBuilder();
+            // 在字节流上匹配 <CR><LF>.<CR><LF>，354 响应行本身以 <CR><LF> 结尾，
+            // 所以初始状态视为已经匹配了前两个字节，空邮件也能正确结束。
+            // 行首的 '.' 要么是结束符的一部分，要么是 dot-stuffing 加上的，都不写入内容
+            MessageBuffer data = mDataBuffer;
+            data.reset();
+            MimeParser parser = new MimeParser();
+            resetBodyDigest();
+            int limit = maxMessageSize();
+            boolean tooBig = false;
+            int matched = 2;
             while (true) {
-                int cp = mReader.read();
-                if (cp == -1) {
+                if (mInPos == mInLimit && !fillInput()) {
                     throw new IOException();
                 }
-                char c = (char) cp;
-                if (c != '\r') {
-                    sb.append(c);
-                } else {
-                    String cs = checkDataEnd();
-                    if (cs != null) {
-                        sb.append(cs);
+                int start = mInPos;
+                int end = mInLimit;
+                int p = start;
+                while (p < end && matched < 5) {
+                    byte b = mInBuffer[p++];
+                    if (b == DATA_END[matched]) {
+                        matched++;
+                        if (matched == 3) {
+                            if (!tooBig) {
+                                data.write(mInBuffer, start, p - 1 - start);
+                                parser.feed(mInBuffer, start, p - 1 - start);
+                            }
+                            start = p;
+                        }
                     } else {
-                        break;
+                        matched = b == '\r' ? 1 : 0;
                     }
                 }
+                if (!tooBig) {
+                    data.write(mInBuffer, start, p - start);
+                    parser.feed(mInBuffer, start, p - start);
+                }
+                mInPos = p;
+                if (!tooBig && data.size() - (DATA_END.length - 1) > limit) {
+                    // 超出上限，之后只找结束符，内容不再保存
+                    tooBig = true;
+                    data.reset();
+                }
+                if (matched == 5) {
+                    break;
+                }
+                if (!tooBig) {
+                    // 结尾的几个字节可能属于结束符，最后再计算
+                    updateBodyDigest(data.array(), data.size() - (DATA_END.length - 1), parser.getBodyStart());
+                }
+            }
+            endData();
+            mMetrics.recordData(data.size(), System.nanoTime() - dataStart);
+            if (data.array().length > MAX_KEPT_DATA_BUFFER) {
+                // 不让一封大邮件的缓冲区一直占着内存
+                mDataBuffer = new MessageBuffer();
             }
-            mCurrentMail.content = sb.toString();
+            if (tooBig) {
+                mCurrentMail = null;
+                writeLine(SMTPDefine.MESSAGE_TOO_BIG, "Error: message too big");
+                return;
+            }
+            // 去掉结尾的 <CR><LF><CR><LF>（'.' 已经去掉了）
+            int size = Math.max(data.size() - (DATA_END.length - 1), 0);
+            mCurrentMail.raw = Arrays.copyOf(data.array(), size);
+            mCurrentMail.content = new String(data.array(), 0, size, "UTF-8");
+            setMime(parser.finish(size));
+            finishBodyDigest(data.array(), size);
+
+            mMetrics.recordMessage(size);
+            deliver();
+        }
+
+        /**
+         * 格式错误时无法得知后面跟着多少字节，没办法继续同步，回复错误后抛出异常断开连接
+         */
+        private Matcher matchBdat(String cmd) throws IOException {
+            Matcher matcher = mPattern_bdat.matcher(cmd.toLowerCase());
+            if (!matcher.matches()) {
+                writeLine(SMTPDefine.BAD_ARGUMENT, "Syntax: BDAT chunk-size [LAST]");
+                throw new IOException("bad BDAT syntax");
+            }
+            return matcher;
+        }
+
+        /**
+         * 拒绝一个 BDAT 命令。不管是否接受都必须把这一块数据读完，之后才能继续解析命令
+         */
+        private void rejectBdat(String cmd, String message) throws IOException {
+            long chunkSize = Long.parseLong(matchBdat(cmd).group(1));
+            long timeout = mReadTimeout;
+            beginData();
+            skipInput(chunkSize);
+            endData();
+            // HELO/EHLO 之前仍然使用原来的超时
+            mReadTimeout = timeout;
+            writeLine(SMTPDefine.WRONG_SEQUENCE, message);
+        }
+
+        private void doBdat(String cmd) throws IOException {
+            if (mCurrentMail == null || mCurrentMail.to == null) {
+                rejectBdat(cmd, "Error: need RCPT command");
+                return;
+            }
+            Matcher matcher = matchBdat(cmd);
+            long chunkSize = Long.parseLong(matcher.group(1));
+            boolean last = matcher.group(2) != null;
+
+            beginData();
+            if ((long) mChunkSize + chunkSize > maxMessageSize()) {
+                skipInput(chunkSize);
+                endData();
+                discardChunks();
+                mCurrentMail = null;
+                writeLine(SMTPDefine.MESSAGE_TOO_BIG, "Error: message too big");
+                return;
+            }
+
+            if (mChunkParser == null) {
+                mChunkParser = new MimeParser();
+                resetBodyDigest();
+            }
+            int chunkStart = mChunkSize;
+            long dataStart = System.nanoTime();
+            startThrottle();
+            readChunk((int) chunkSize);
+            mMetrics.recordData(chunkSize, System.nanoTime() - dataStart);
+            mChunkParser.feed(mChunkData, chunkStart, mChunkSize - chunkStart);
+            updateBodyDigest(mChunkData, mChunkSize, mChunkParser.getBodyStart());
+            if (!last) {
+                // 等待下一个 BDAT 命令，但整封邮件的截止时间仍然有效
+                mReadTimeout = mCommandTimeout;
+                mReadBandwidth = 0;
+                if (failCommand()) {
+                    // 被拒绝的邮件后面的分块都按没有 RCPT 处理
+                    discardChunks();
+                    mCurrentMail = null;
+                    return;
+                }
+                writeLine(SMTPDefine.OK, chunkSize + " octets received");
+                return;
+            }
+            endData();
+
+            // 整封邮件只有一个空的 BDAT LAST 时没有分配过缓冲区
+            byte[] data = mChunkData == null ? new byte[0] : mChunkData;
+            mCurrentMail.raw = data.length == mChunkSize ? data : Arrays.copyOf(data, mChunkSize);
+            mCurrentMail.content = new String(data, 0, mChunkSize, "UTF-8");
+            setMime(mChunkParser.finish(mChunkSize));
+            finishBodyDigest(data, mChunkSize);
+            mMetrics.recordMessage(mChunkSize);
+            discardChunks();
+
+            deliver();
+        }
+
+        private void doRset() throws IOException {
+            mCurrentMail = null;
+            discardChunks();
+            writeLine(SMTPDefine.OK, "Ok");
+        }
+
+        /**
+         * 丢掉当前事务中已经收到的 BDAT 分块，整封邮件的截止时间随之失效
+         */
+        private void discardChunks() {
+            mChunkData = null;
+            mChunkParser = null;
+            mChunkSize = 0;
+            mDataDeadline = Long.MAX_VALUE;
+        }
 
+        /**
+         * 确认接收当前邮件，转发的邮件写入队列之后才确认
+         */
+        private void deliver() throws IOException {
+            if (failCommand()) {
+                return;
+            }
+            RelayQueue relay = mRelay;
+            String to = mCurrentMail.to;
+            if (relay != null && !mLocalDomains.contains(to.substring(to.indexOf('@') + 1))) {
+                try {
+                    relay.enqueue(mCurrentMail);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    writeLine(SMTPDefine.LOCAL_ERROR, "Error: can't queue message, try again later");
+                    return;
+                }
+                writeLine(SMTPDefine.OK, "Ok: queued for relay");
+                return;
+            }
             writeLine(SMTPDefine.OK, "Ok: queued as");
             // 插入收件箱
             mMailBox.deliverMail(mCurrentMail);
         }
 
-        private String checkDataEnd() throws IOException {
-            StringBuilder sb = new StringBuilder();
-            sb.append('\r');
-            int cp = mReader.read();
-            if (cp == -1) {
-                throw new IOException();
+        private void setMime(MimePart mime) {
+            mCurrentMail.mime = mime;
+            mCurrentMail.subject = mime.getDecodedHeader("Subject");
+        }
+
+        private void resetBodyDigest() {
+            mBodyDigest.reset();
+            mHashStart = -1;
+            mHashed = 0;
+        }
+
+        /**
+         * 把 data 中 end 之前还没有计算的正文送入摘要
+         *
+         * @param bodyStart 解析器目前得知的正文位置，-1 表示还不知道
+         */
+        private void updateBodyDigest(byte[] data, int end, int bodyStart) {
+            if (mHashStart < 0) {
+                if (bodyStart < 0) {
+                    return;
+                }
+                mHashStart = mHashed = bodyStart;
             }
-            char c = (char) cp;
-            sb.append(c);
-            if (c != '\n') {
-                return sb.toString();
+            if (end > mHashed) {
+                mBodyDigest.update(data, mHashed, end - mHashed);
+                mHashed = end;
             }
-            cp = mReader.read();
-            if (cp == -1) {
-                throw new IOException();
+        }
+
+        /**
+         * 在 {@link #setMime(MimePart)} 之后调用，得到整个正文的摘要
+         */
+        private void finishBodyDigest(byte[] data, int size) {
+            int bodyStart = Math.min(mCurrentMail.mime.mBodyStart, size);
+            updateBodyDigest(data, size, bodyStart);
+            // 正文的位置在结束时被截断的情况下，已经计算的部分不对，交给收件箱重新计算
+            mCurrentMail.bodyDigest = mHashStart == bodyStart && mHashed == size ? mBodyDigest.digest() : null;
+            mBodyDigest.reset();
+        }
+
+        private int maxMessageSize() {
+            int max = mMaxMessageSize;
+            return max > 0 && max < MAX_ARRAY_SIZE ? max : MAX_ARRAY_SIZE;
+        }
+
+        /**
+         * 把接下来的 len 个字节追加到 mChunkData，已缓冲的部分直接拷贝，
+         * 其余部分从 socket 整块读入，不逐字节检查
+         */
+        private void readChunk(int len) throws IOException {
+            while (len > 0) {
+                if (mChunkData == null || mChunkSize == mChunkData.length) {
+                    growChunkData(len);
+                }
+                int room = Math.min(len, mChunkData.length - mChunkSize);
+                int n;
+                if (mInPos < mInLimit) {
+                    n = Math.min(room, mInLimit - mInPos);
+                    System.arraycopy(mInBuffer, mInPos, mChunkData, mChunkSize, n);
+                    mInPos += n;
+                } else {
+                    n = read(mChunkData, mChunkSize, room);
+                    if (n == -1) {
+                        throw new IOException();
+                    }
+                }
+                mChunkSize += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * 随数据实际到达成倍扩容，不按客户端在 BDAT 中声明的大小一次分配
+         *
+         * @param remaining 这一块还没有收到的字节数
+         */
+        private void growChunkData(int remaining) {
+            int capacity = mChunkData == null ? 0 : mChunkData.length;
+            long grown = Math.max(capacity * 2L, INPUT_BUFFER_SIZE);
+            byte[] temp = new byte[(int) Math.min(grown, (long) mChunkSize + remaining)];
+            if (mChunkData != null) {
+                System.arraycopy(mChunkData, 0, temp, 0, mChunkSize);
+            }
+            mChunkData = temp;
+        }
+
+        private void skipInput(long len) throws IOException {
+            while (len > 0) {
+                if (mInPos == mInLimit && !fillInput()) {
+                    throw new IOException();
+                }
+                int n = (int) Math.min(len, mInLimit - mInPos);
+                mInPos += n;
+                len -= n;
             }
-            c = (char) cp;
-            sb.append(c);
-            if (c != '.') {
-                return sb.toString();
+        }
+
+        /**
+         * @return false 表示连接已经关闭
+         */
+        private boolean fillInput() throws IOException {
+            int n = read(mInBuffer, 0, mInBuffer.length);
+            if (n == -1) {
+                return false;
+            }
+            mInPos = 0;
+            mInLimit = n;
+            return true;
+        }
+
+        /**
+         * 所有阻塞读取都经过这里
+         */
+        private int read(byte[] b, int off, int len) throws IOException {
+            // 马上要阻塞等待输入了，之前缓冲的响应必须先发出去
+            flushOutput();
+            if (mReadBandwidth > 0) {
+                len = throttle(len);
             }
-            cp = mReader.read();
-            if (cp == -1) {
-                throw new IOException();
+            mReadDeadline = Math.min(monotonicMillis() + mReadTimeout, mDataDeadline);
+            int n;
+            try {
+                n = mInput.read(b, off, len);
+            } finally {
+                mReadDeadline = 0;
             }
-            c = (char) cp;
-            sb.append(c);
-            if (c != '\r') {
-                return sb.toString();
+            if (n > 0) {
+                mThrottleBytes += n;
+                if (mTrace != null) {
+                    mTrace.recordInput(mTraceSession, b, off, n);
+                }
+            }
+            return n;
+        }
+
+        /**
+         * 在定时线程中执行，超时后直接关闭连接，阻塞在读取上的工作线程会因此抛出异常退出
+         */
+        private void checkTimeout() {
+            if (mFinished) {
+                return;
             }
-            cp = mReader.read();
-            if (cp == -1) {
-                throw new IOException();
+            long deadline = mReadDeadline;
+            long now = monotonicMillis();
+            if (deadline == 0 || now < deadline) {
+                mTimeoutCheck = mTimer.schedule(mTimeoutTask, deadline == 0 ? mReadTimeout : deadline - now);
+                return;
             }
-            c = (char) cp;
-            sb.append(c);
-            if (c != '\n') {
-                return sb.toString();
+            mTimedOut = true;
+            mTimedOutSessions.incrementAndGet();
+            silentClose(mSocketChannel);
+        }
+
+        /**
+         * 开始接收邮件内容，之后的读取使用 DATA 的超时设置
+         */
+        private void beginData() {
+            mReadTimeout = mDataBlockTimeout;
+            if (mDataDeadline == Long.MAX_VALUE) {
+                mDataDeadline = monotonicMillis() + mDataTerminationTimeout;
             }
+        }
 
-            return null;
+        private void endData() {
+            mReadTimeout = mCommandTimeout;
+            mDataDeadline = Long.MAX_VALUE;
+            mReadBandwidth = 0;
         }
 
         private void doQuit() throws IOException {
             writeLine(SMTPDefine.CONNECT_CLOSE, "BYE");
+            flushOutput();
+        }
+
+        /**
+         * 按故障策略决定这条命令要注入的故障，DATA/BDAT 的错误和断开留到内容接收完再处理
+         *
+         * @return true 表示命令不再执行，响应已经由故障代替
+         */
+        private boolean injectFault(String line) throws IOException {
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+            if ("QUIT".equals(command) || "STARTTLS".equals(command)) {
+                mFault = null;
+                return false;
+            }
+            String recipient = null;
+            if ("RCPT".equals(command)) {
+                Matcher matcher = mPattern_rcptTo.matcher(line.toLowerCase());
+                if (matcher.matches()) {
+                    recipient = matcher.group(1);
+                }
+            } else if (mCurrentMail != null) {
+                recipient = mCurrentMail.to;
+            }
+            mFault = mFaults.decide(command, recipient);
+            if (mFault == null || "DATA".equals(command) || "BDAT".equals(command)) {
+                return false;
+            }
+            return failCommand();
+        }
+
+        /**
+         * 执行当前故障中的错误响应或者断开
+         *
+         * @return true 表示正常的响应已经被代替
+         */
+        private boolean failCommand() throws IOException {
+            FaultPolicy.Fault fault = mFault;
+            if (fault == null) {
+                return false;
+            }
+            if (fault.disconnect) {
+                mDropped = true;
+                mFault = null;
+                if (fault.delay == 0) {
+                    throw new IOException("connection dropped by fault policy");
+                }
+                // 不回复，到时间由定时任务关闭连接，阻塞在读取上的会话线程随之退出
+                mFaults.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        silentClose(mSocketChannel);
+                    }
+                }, fault.delay);
+                return true;
+            }
+            if (fault.reply == SMTPDefine.LOCAL_ERROR) {
+                writeLine(fault.reply, "Error: local error in processing, try again later");
+                return true;
+            }
+            if (fault.reply != 0) {
+                writeLine(fault.reply, "Error: requested action not taken");
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 当前故障要求推迟响应时，把已经写入缓冲区的响应留到期限之后发出
+         */
+        private void delayReply() {
+            FaultPolicy.Fault fault = mFault;
+            mFault = null;
+            if (fault == null || fault.delay == 0) {
+                return;
+            }
+            mOutputLock.lock();
+            try {
+                mHoldUntil = Math.max(mHoldUntil, System.nanoTime() / 1000000 + fault.delay);
+                if (!mHolding) {
+                    mHolding = true;
+                    mFaults.schedule(mReleaseTask, fault.delay);
+                }
+            } finally {
+                mOutputLock.unlock();
+            }
+        }
+
+        /**
+         * 在线程池中执行，发出被推迟的响应。期间又有响应被推迟到更晚时重新排队
+         */
+        private void flushHeldOutput() {
+            mOutputLock.lock();
+            try {
+                if (!mHolding) {
+                    // 会话已经异常结束
+                    return;
+                }
+                long remaining = mHoldUntil - System.nanoTime() / 1000000;
+                if (remaining > 0) {
+                    mFaults.schedule(mReleaseTask, remaining);
+                    return;
+                }
+                mHolding = false;
+                try {
+                    mOutput.flush();
+                } catch (IOException e) {
+                    // 对方已经断开，会话线程的读取也会失败
+                    silentClose(mSocketChannel);
+                }
+                if (mCloseAfterFlush) {
+                    closeSession();
+                }
+            } finally {
+                mOutputLock.unlock();
+            }
+        }
+
+        /**
+         * 会话结束时还有被推迟的响应，正常退出的会话交给定时任务发出响应后再关闭连接，
+         * 异常退出的直接丢弃
+         *
+         * @return true 表示由定时任务关闭连接
+         */
+        private boolean deferClose(boolean flush) {
+            if (mFaults == null) {
+                return false;
+            }
+            mOutputLock.lock();
+            try {
+                if (mHolding && flush) {
+                    mCloseAfterFlush = true;
+                    return true;
+                }
+                mHolding = false;
+                return false;
+            } finally {
+                mOutputLock.unlock();
+            }
+        }
+
+        private void flushOutput() throws IOException {
+            lockOutput();
+            try {
+                if (!mHolding) {
+                    mOutput.flush();
+                }
+            } finally {
+                unlockOutput();
+            }
+        }
+
+        private void lockOutput() {
+            if (mFaults != null) {
+                mOutputLock.lock();
+            }
+        }
+
+        private void unlockOutput() {
+            if (mFaults != null) {
+                mOutputLock.unlock();
+            }
+        }
+
+        private void startThrottle() {
+            mReadBandwidth = mFault != null ? mFault.dataBandwidth : 0;
+            mThrottleStart = System.nanoTime();
+            mThrottleBytes = 0;
+        }
+
+        /**
+         * 限速时每次最多读 0.1 秒的量，读之前先等到已读的字节数不超过限速允许的量。
+         * 等待的是会话自己的线程，它本来也要阻塞在读取上
+         *
+         * @return 这次最多读取的字节数
+         */
+        private int throttle(int len) {
+            long due = mThrottleStart + mThrottleBytes * 1000000000L / mReadBandwidth;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            return Math.max(1, Math.min(len, mReadBandwidth / 10));
         }
 
         public boolean startWithIgnoreCase(String src, String obj) {
@@ -387,9 +1442,7 @@ public class SMTPServer {
         private String nextLine() throws IOException {
             String line;
             while (true) {
-                mSocket.setSoTimeout(20000);
-                line = mReader.readLine();
-                mSocket.setSoTimeout(0);
+                line = readLine();
                 if (line == null) {
                     throw new IOException();
                 }
@@ -398,34 +1451,79 @@ public class SMTPServer {
             return line;
         }
 
-        private void writeLine(int returnCode, String message) throws IOException {
-            mWriter.print(returnCode);
-            mWriter.print(' ');
-            mWriter.print(message);
-            mWriter.print(SMTPDefine.LINE_SP);
-            mWriter.flush();
+        /**
+         * 读取一行并按 UTF-8 解码，行尾的 CR/LF 不包含在结果中
+         *
+         * @return null 表示连接已经关闭
+         */
+        private String readLine() throws IOException {
+            mLineBuffer.reset();
+            while (true) {
+                if (mInPos == mInLimit && !fillInput()) {
+                    return null;
+                }
+                int start = mInPos;
+                int p = start;
+                while (p < mInLimit && mInBuffer[p] != '\n') {
+                    p++;
+                }
+                if (p < mInLimit) {
+                    mInPos = p + 1;
+                    int end = p;
+                    if (mLineBuffer.size() == 0) {
+                        if (end > start && mInBuffer[end - 1] == '\r') {
+                            end--;
+                        }
+                        return new String(mInBuffer, start, end - start, "UTF-8");
+                    }
+                    mLineBuffer.write(mInBuffer, start, end - start);
+                    byte[] line = mLineBuffer.toByteArray();
+                    int len = line.length;
+                    if (len > 0 && line[len - 1] == '\r') {
+                        len--;
+                    }
+                    return new String(line, 0, len, "UTF-8");
+                }
+                mLineBuffer.write(mInBuffer, start, p - start);
+                mInPos = p;
+            }
+        }
 
-            if (mWriter.checkError()) {
-                throw new IOException();
+        private void writeLine(int returnCode, String message) throws IOException {
+            lockOutput();
+            try {
+                mOutput.writeText(Integer.toString(returnCode));
+                mOutput.write(' ');
+                mOutput.writeText(message);
+                mOutput.writeText(SMTPDefine.LINE_SP);
+            } finally {
+                unlockOutput();
             }
+            traceOutput(returnCode, ' ', message);
         }
 
         private void writeLines(int returnCode, String lines[]) throws IOException {
+            String code = Integer.toString(returnCode);
             int len = lines.length - 1;
-            for (int i = 0; i < len; i++) {
-                mWriter.print(returnCode);
-                mWriter.print('-');
-                mWriter.print(lines[i]);
-                mWriter.print(SMTPDefine.LINE_SP);
-            }
-            mWriter.print(returnCode);
-            mWriter.print(' ');
-            mWriter.print(lines[len]);
-            mWriter.print(SMTPDefine.LINE_SP);
-            mWriter.flush();
-
-            if (mWriter.checkError()) {
-                throw new IOException();
+            lockOutput();
+            try {
+                for (int i = 0; i < len; i++) {
+                    mOutput.writeText(code);
+                    mOutput.write('-');
+                    mOutput.writeText(lines[i]);
+                    mOutput.writeText(SMTPDefine.LINE_SP);
+                    traceOutput(returnCode, '-', lines[i]);
+                }
+                writeLine(returnCode, lines[len]);
+            } finally {
+                unlockOutput();
+            }
+        }
+
+        private void traceOutput(int returnCode, char separator, String message) throws IOException {
+            if (mTrace != null) {
+                byte[] line = (returnCode + String.valueOf(separator) + message + SMTPDefine.LINE_SP).getBytes("UTF-8");
+                mTrace.recordOutput(mTraceSession, line, 0, line.length);
             }
         }
     }
@@ -0,0 +1,381 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP 服务端的运行统计
+ * <p/>
+ * 工作线程只做原子加和 {@link Histogram} 记录，不加锁；会话数、收件箱大小等
+ * 已经由 {@link SMTPServer} 和 {@link MailBox} 维护的值在读取时才去取。
+ * 统计结果注册为 MBean，也可以通过只监听本机地址的 HTTP 接口以文本格式抓取。
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /* package */ static final String[] VERBS = {
+            "HELO", "EHLO", "AUTH", "MAIL", "RCPT", "DATA", "BDAT", "QUIT", "OTHER"
+    };
+
+    private final SMTPServer mServer;
+    private final MailBox mMailBox;
+
+    // 各命令从读到命令行到处理完毕的耗时，单位微秒，DATA/BDAT 包括接收邮件内容
+    private final Histogram[] mCommandLatency = new Histogram[VERBS.length];
+    private final Histogram mMessageSize = new Histogram();
+    private final AtomicLong mDataBytes = new AtomicLong();
+    private final AtomicLong mDataNanos = new AtomicLong();
+    private final AtomicLong mAuthFailures = new AtomicLong();
+    // STARTTLS 握手耗时，单位微秒
+    private final Histogram mHandshakeLatency = new Histogram();
+    private final AtomicLong mResumedHandshakes = new AtomicLong();
+
+    private ObjectName mObjectName = null;
+    private HttpServer mHttpServer = null;
+
+    public ServerMetrics(SMTPServer server, MailBox mailBox) {
+        mServer = server;
+        mMailBox = mailBox;
+        for (int i = 0; i < VERBS.length; i++) {
+            mCommandLatency[i] = new Histogram();
+        }
+    }
+
+    /**
+     * @param line       客户端发来的命令行
+     * @param startNanos 开始处理时的 {@link System#nanoTime()}
+     */
+    /* package */ void recordCommand(String line, long startNanos) {
+        mCommandLatency[verbOf(line)].record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * 记录一次邮件内容的接收
+     *
+     * @param bytes 接收的字节数
+     * @param nanos 接收耗时
+     */
+    /* package */ void recordData(long bytes, long nanos) {
+        mDataBytes.addAndGet(bytes);
+        mDataNanos.addAndGet(nanos);
+    }
+
+    /* package */ void recordMessage(int size) {
+        mMessageSize.record(size);
+    }
+
+    /* package */ void recordAuthFailure() {
+        mAuthFailures.incrementAndGet();
+    }
+
+    /* package */ void recordHandshake(long nanos, boolean resumed) {
+        mHandshakeLatency.record(nanos / 1000);
+        if (resumed) {
+            mResumedHandshakes.incrementAndGet();
+        }
+    }
+
+    private static int verbOf(String line) {
+        int other = VERBS.length - 1;
+        for (int i = 0; i < other; i++) {
+            String verb = VERBS[i];
+            if (line.regionMatches(true, 0, verb, 0, verb.length())) {
+                return i;
+            }
+        }
+        return other;
+    }
+
+    private static int indexOfVerb(String verb) {
+        for (int i = 0; i < VERBS.length; i++) {
+            if (VERBS[i].equalsIgnoreCase(verb)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Histogram getCommandLatency(String verb) {
+        int index = indexOfVerb(verb);
+        return index < 0 ? null : mCommandLatency[index];
+    }
+
+    public Histogram getMessageSize() {
+        return mMessageSize;
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return mServer.getActiveSessions();
+    }
+
+    @Override
+    public long getAcceptedSessions() {
+        return mServer.getAcceptedSessions();
+    }
+
+    @Override
+    public long getRejectedSessions() {
+        return mServer.getRejectedSessions();
+    }
+
+    @Override
+    public long getTimedOutSessions() {
+        return mServer.getTimedOutSessions();
+    }
+
+    @Override
+    public long getDeferredMails() {
+        return mServer.getDeferredMails();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return mServer.getRateLimited();
+    }
+
+    @Override
+    public long getAuthFailures() {
+        return mAuthFailures.get();
+    }
+
+    @Override
+    public long getTlsHandshakes() {
+        return mHandshakeLatency.getCount();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return mResumedHandshakes.get();
+    }
+
+    @Override
+    public long getTlsHandshakeP99Micros() {
+        return mHandshakeLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return BufferPool.DIRECT.getHits() + BufferPool.HEAP.getHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return BufferPool.DIRECT.getMisses() + BufferPool.HEAP.getMisses();
+    }
+
+    @Override
+    public int getBufferPoolOutstanding() {
+        return BufferPool.DIRECT.getOutstanding() + BufferPool.HEAP.getOutstanding();
+    }
+
+    @Override
+    public long getBufferPoolLeaks() {
+        return BufferPool.DIRECT.getLeaks() + BufferPool.HEAP.getLeaks();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return mMessageSize.getCount();
+    }
+
+    @Override
+    public long getDataBytes() {
+        return mDataBytes.get();
+    }
+
+    /**
+     * @return 接收邮件内容时的平均速率，只计算实际接收的时间
+     */
+    @Override
+    public double getDataBytesPerSecond() {
+        long nanos = mDataNanos.get();
+        return nanos == 0 ? 0 : mDataBytes.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public double getMessageSizeMean() {
+        return mMessageSize.getMean();
+    }
+
+    @Override
+    public long getMessageSizeP99() {
+        return mMessageSize.getPercentile(0.99);
+    }
+
+    @Override
+    public int getMailBoxCount() {
+        return mMailBox.getMailCount();
+    }
+
+    @Override
+    public long getMailBoxBytes() {
+        return mMailBox.getTotalBytes();
+    }
+
+    @Override
+    public int getPendingSpills() {
+        return mMailBox.getPendingSpillCount();
+    }
+
+    @Override
+    public long getMailBoxBodyBytes() {
+        return mMailBox.getBodyBytes();
+    }
+
+    @Override
+    public long getMailBoxStoredBodyBytes() {
+        return mMailBox.getStoredBodyBytes();
+    }
+
+    @Override
+    public double getMailBoxDedupRatio() {
+        return mMailBox.getDedupRatio();
+    }
+
+    @Override
+    public double getMailBoxCompressionRatio() {
+        return mMailBox.getCompressionRatio();
+    }
+
+    @Override
+    public long getDeliveryLatencyP99Micros() {
+        return mMailBox.getDeliveryLatency().getPercentile(0.99);
+    }
+
+    @Override
+    public long getCommandLatencyMicros(String verb, double q) {
+        Histogram histogram = getCommandLatency(verb);
+        return histogram == null ? 0 : histogram.getPercentile(q);
+    }
+
+    @Override
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "smtp_sessions_active", getActiveSessions());
+        counter(sb, "smtp_sessions_accepted_total", getAcceptedSessions());
+        counter(sb, "smtp_sessions_rejected_total", getRejectedSessions());
+        counter(sb, "smtp_sessions_timed_out_total", getTimedOutSessions());
+        counter(sb, "smtp_mail_deferred_total", getDeferredMails());
+        counter(sb, "smtp_rate_limited_total", getRateLimited());
+        counter(sb, "smtp_auth_failures_total", getAuthFailures());
+        counter(sb, "smtp_data_bytes_total", getDataBytes());
+        counter(sb, "smtp_data_seconds_total", mDataNanos.get() / 1e9);
+        counter(sb, "smtp_tls_resumed_handshakes_total", getTlsResumedHandshakes());
+        sb.append("# TYPE smtp_tls_handshake_microseconds histogram\n");
+        mHandshakeLatency.writeText(sb, "smtp_tls_handshake_microseconds", null);
+
+        sb.append("# TYPE smtp_command_latency_microseconds histogram\n");
+        for (int i = 0; i < VERBS.length; i++) {
+            mCommandLatency[i].writeText(sb, "smtp_command_latency_microseconds", "verb=\"" + VERBS[i] + "\"");
+        }
+        sb.append("# TYPE smtp_message_size_bytes histogram\n");
+        mMessageSize.writeText(sb, "smtp_message_size_bytes", null);
+
+        writePool(sb, "direct", BufferPool.DIRECT);
+        writePool(sb, "heap", BufferPool.HEAP);
+
+        gauge(sb, "mailbox_mails", getMailBoxCount());
+        gauge(sb, "mailbox_bytes", getMailBoxBytes());
+        gauge(sb, "mailbox_body_bytes", getMailBoxBodyBytes());
+        gauge(sb, "mailbox_stored_body_bytes", getMailBoxStoredBodyBytes());
+        gauge(sb, "mailbox_dedup_ratio", getMailBoxDedupRatio());
+        gauge(sb, "mailbox_compression_ratio", getMailBoxCompressionRatio());
+        gauge(sb, "mailbox_pending_spills", getPendingSpills());
+        counter(sb, "mailbox_spilled_total", mMailBox.getSpilledCount());
+        sb.append("# TYPE mailbox_delivery_latency_microseconds histogram\n");
+        mMailBox.getDeliveryLatency().writeText(sb, "mailbox_delivery_latency_microseconds", null);
+        return sb.toString();
+    }
+
+    private static void writePool(StringBuilder sb, String pool, BufferPool bufferPool) {
+        String labels = "{pool=\"" + pool + "\"} ";
+        sb.append("buffer_pool_hits_total").append(labels).append(bufferPool.getHits()).append('\n');
+        sb.append("buffer_pool_misses_total").append(labels).append(bufferPool.getMisses()).append('\n');
+        sb.append("buffer_pool_outstanding").append(labels).append(bufferPool.getOutstanding()).append('\n');
+        sb.append("buffer_pool_leaks_total").append(labels).append(bufferPool.getLeaks()).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, Number value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, Number value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * 注册到平台 MBeanServer，名字为 SMTPSimulator:type=SMTPServer,name=serverName。
+     * 同一个进程中有同名的服务端时依次使用 serverName#2、serverName#3……，不影响已经注册的服务端
+     */
+    public synchronized void registerMBean(String serverName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (int n = 1; ; n++) {
+                ObjectName name = new ObjectName("SMTPSimulator:type=SMTPServer,name="
+                        + ObjectName.quote(n == 1 ? serverName : serverName + "#" + n));
+                try {
+                    server.registerMBean(this, name);
+                    mObjectName = name;
+                    return;
+                } catch (InstanceAlreadyExistsException e) {
+                    // 换下一个名字
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 在 127.0.0.1:port 上提供 /metrics，只接受本机访问
+     */
+    public synchronized void startHttpEndpoint(int port) throws IOException {
+        if (mHttpServer != null) {
+            return;
+        }
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        httpServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = scrape().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // 使用 HttpServer 自己的分发线程，抓取很少，不需要线程池
+        httpServer.setExecutor(null);
+        httpServer.start();
+        mHttpServer = httpServer;
+    }
+
+    public synchronized void stop() {
+        if (mHttpServer != null) {
+            mHttpServer.stop(0);
+            mHttpServer = null;
+        }
+        if (mObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mObjectName = null;
+        }
+    }
+}
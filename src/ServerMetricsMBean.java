@@ -0,0 +1,71 @@
+/**
+ * {@link ServerMetrics} 通过 JMX 暴露的属性和操作
+ */
+public interface ServerMetricsMBean {
+
+    int getActiveSessions();
+
+    long getAcceptedSessions();
+
+    long getRejectedSessions();
+
+    long getTimedOutSessions();
+
+    long getDeferredMails();
+
+    long getRateLimited();
+
+    long getAuthFailures();
+
+    long getTlsHandshakes();
+
+    long getTlsResumedHandshakes();
+
+    long getTlsHandshakeP99Micros();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    int getBufferPoolOutstanding();
+
+    long getBufferPoolLeaks();
+
+    long getMessagesReceived();
+
+    long getDataBytes();
+
+    double getDataBytesPerSecond();
+
+    double getMessageSizeMean();
+
+    long getMessageSizeP99();
+
+    int getMailBoxCount();
+
+    long getMailBoxBytes();
+
+    int getPendingSpills();
+
+    long getMailBoxBodyBytes();
+
+    long getMailBoxStoredBodyBytes();
+
+    double getMailBoxDedupRatio();
+
+    double getMailBoxCompressionRatio();
+
+    long getDeliveryLatencyP99Micros();
+
+    /**
+     * @param verb 命令名，如 MAIL
+     * @param q    0 到 1 之间
+     * @return 该命令处理耗时的 q 分位数，单位微秒
+     */
+    long getCommandLatencyMicros(String verb, double q);
+
+    /**
+     * @return 与抓取接口相同的文本
+     */
+    String scrape();
+}
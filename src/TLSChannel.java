@@ -0,0 +1,329 @@
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于 {@link SSLEngine} 的 TLS channel，用于 STARTTLS
+ * <p/>
+ * 包装一个已经建立的 {@link SocketChannel}，明文握手结束后调用 {@link #handshake()}，
+ * 之后像普通 channel 一样读写，可以直接交给 {@link ChannelOutputStream}。
+ * 收发用的网络缓冲区和明文缓冲区从 {@link BufferPool} 借出，连接关闭时归还。
+ * 读和写各有一把锁，可以由两个线程同时进行；握手必须在开始并发读写之前完成。
+ */
+public class TLSChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel mChannel;
+    private final SSLEngine mEngine;
+    private final ReentrantLock mReadLock = new ReentrantLock();
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+
+    // 从 socket 读入还没有解密的数据，写模式
+    private ByteBuffer mNetIn;
+    // 加密后等待写入 socket 的数据，写模式
+    private ByteBuffer mNetOut;
+    // 解密后还没有被取走的明文，读模式
+    private ByteBuffer mAppIn;
+
+    private boolean mInboundDone = false;
+    private boolean mClosed = false;
+    private boolean mResumed = false;
+    private long mHandshakeNanos = 0;
+
+    /**
+     * @param channel 阻塞模式的 socket channel
+     * @param engine  已经设置好客户端/服务端模式的 SSLEngine
+     */
+    public TLSChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        mChannel = channel;
+        // 握手消息和加密记录都已经攒成整块再写，Nagle 算法只会让紧接着的下一次写
+        // 等待对方的延迟确认，每次多出几十毫秒
+        channel.socket().setTcpNoDelay(true);
+        mEngine = engine;
+        SSLSession session = engine.getSession();
+        mNetIn = BufferPool.DIRECT.acquire(session.getPacketBufferSize());
+        mNetOut = BufferPool.DIRECT.acquire(session.getPacketBufferSize());
+        mAppIn = BufferPool.HEAP.acquire(session.getApplicationBufferSize());
+        mAppIn.flip();
+    }
+
+    /**
+     * 完成 TLS 握手
+     */
+    public void handshake() throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        mEngine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    status = mEngine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    // 同一轮的几条握手消息攒在一起写出
+                    status = wrap(EMPTY, 0, 1).getHandshakeStatus();
+                    if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                        status = mEngine.getHandshakeStatus();
+                    }
+                    if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        flushNetOut();
+                    }
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    mHandshakeNanos = System.nanoTime() - start;
+                    // 复用的会话是在这次握手之前建立的
+                    mResumed = mEngine.getSession().getCreationTime() < startMillis;
+                    return;
+                default:
+                    // NEED_UNWRAP，以及新版本 JDK 的 NEED_UNWRAP_AGAIN
+                    SSLEngineResult result = unwrap();
+                    if (result == null) {
+                        throw new EOFException("connection closed during TLS handshake");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS handshake aborted by peer");
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return 最近一次握手是否复用了之前的会话
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    public long getHandshakeNanos() {
+        return mHandshakeNanos;
+    }
+
+    public SSLSession getSession() {
+        return mEngine.getSession();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        mReadLock.lock();
+        try {
+            while (true) {
+                if (mAppIn == null) {
+                    throw new ClosedChannelException();
+                }
+                if (mAppIn.hasRemaining()) {
+                    int n = Math.min(mAppIn.remaining(), dst.remaining());
+                    int limit = mAppIn.limit();
+                    mAppIn.limit(mAppIn.position() + n);
+                    dst.put(mAppIn);
+                    mAppIn.limit(limit);
+                    return n;
+                }
+                if (mInboundDone) {
+                    return -1;
+                }
+                SSLEngineResult result = unwrap();
+                if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    mInboundDone = true;
+                    continue;
+                }
+                // 握手之后对方还可能发来会话票据、密钥更新等握手消息
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    status = mEngine.getHandshakeStatus();
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    mWriteLock.lock();
+                    try {
+                        wrap(EMPTY, 0, 1);
+                        flushNetOut();
+                    } finally {
+                        mWriteLock.unlock();
+                    }
+                }
+            }
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * 多个缓冲区的内容由 SSLEngine 直接加密进同一个记录，不需要先拼接
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        mWriteLock.lock();
+        try {
+            long written = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                written += result.bytesConsumed();
+            }
+            flushNetOut();
+            return written;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    /**
+     * 发送 close_notify 后关闭 socket，可以重复调用
+     */
+    @Override
+    public void close() throws IOException {
+        mWriteLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mEngine.closeOutbound();
+            try {
+                wrap(EMPTY, 0, 1);
+                flushNetOut();
+            } catch (IOException e) {
+                // 对方已经断开了
+            }
+        } finally {
+            mWriteLock.unlock();
+            mChannel.close();
+        }
+        // socket 关闭后阻塞中的读取会立即返回，之后才能安全地归还缓冲区
+        mReadLock.lock();
+        mWriteLock.lock();
+        try {
+            BufferPool.DIRECT.release(mNetIn);
+            BufferPool.DIRECT.release(mNetOut);
+            BufferPool.HEAP.release(mAppIn);
+            mNetIn = mNetOut = mAppIn = null;
+        } finally {
+            mWriteLock.unlock();
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * 解密一个记录，数据不够时从 socket 读取，只由持有读锁的线程或握手线程调用
+     *
+     * @return null 表示连接已经关闭
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            mNetIn.flip();
+            mAppIn.compact();
+            SSLEngineResult result;
+            try {
+                result = mEngine.unwrap(mNetIn, mAppIn);
+            } finally {
+                mNetIn.compact();
+                mAppIn.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!mNetIn.hasRemaining()) {
+                        mNetIn = BufferPool.DIRECT.grow(mNetIn, mEngine.getSession().getPacketBufferSize(), true);
+                    }
+                    if (mChannel.read(mNetIn) == -1) {
+                        try {
+                            mEngine.closeInbound();
+                        } catch (SSLException e) {
+                            // 对方没有发送 close_notify 就断开了，对 SMTP 来说 QUIT 之后这很常见
+                        }
+                        return null;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    mAppIn = BufferPool.HEAP.grow(mAppIn, mEngine.getSession().getApplicationBufferSize(), false);
+                    break;
+                default:
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * 加密一个记录追加到 mNetOut，放不下时先把已有的记录写出。
+     * 只由持有写锁的线程或握手线程调用，调用方负责最后的 {@link #flushNetOut()}
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (mNetOut == null) {
+            throw new ClosedChannelException();
+        }
+        while (true) {
+            SSLEngineResult result = mEngine.wrap(srcs, offset, length, mNetOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (mNetOut.position() > 0) {
+                    flushNetOut();
+                } else {
+                    mNetOut = BufferPool.DIRECT.grow(mNetOut, mEngine.getSession().getPacketBufferSize(), true);
+                }
+                continue;
+            }
+            return result;
+        }
+    }
+
+    private void flushNetOut() throws IOException {
+        mNetOut.flip();
+        try {
+            while (mNetOut.hasRemaining()) {
+                mChannel.write(mNetOut);
+            }
+        } finally {
+            mNetOut.clear();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,87 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+/**
+ * 创建 STARTTLS 使用的 {@link SSLContext}
+ * <p/>
+ * 会话缓存属于 SSLContext：服务端在同一个 context 内按会话 id 或票据恢复会话，
+ * 客户端按服务器地址和端口复用会话。所以反复建立连接的一方应当始终使用同一个 context。
+ */
+public class TLSContexts {
+
+    // 服务端缓存的会话数和有效期
+    public static final int SESSION_CACHE_SIZE = 10000;
+    public static final int SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+    /**
+     * 从 keytool 生成的密钥库创建服务端 context，如：
+     * keytool -genkeypair -alias smtp -keyalg RSA -keysize 2048 -validity 3650 -dname CN=localhost -keystore smtp.jks
+     */
+    public static SSLContext createServerContext(File keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = loadKeyStore(keyStore, password);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(store, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    /**
+     * 信任指定密钥库中证书的客户端 context
+     */
+    public static SSLContext createClientContext(File trustStore, char[] password) throws IOException, GeneralSecurityException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(loadKeyStore(trustStore, password));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * 不校验服务器证书的客户端 context，只用于连接使用自签名证书的测试服务器
+     */
+    public static SSLContext createInsecureClientContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    private static KeyStore loadKeyStore(File file, char[] password) throws IOException, GeneralSecurityException {
+        // 新版本 JDK 的默认类型可以同时读取 JKS 和 PKCS12
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(file);
+        try {
+            store.load(in, password);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 哈希时间轮，所有定时任务共用一个线程
+ * <p/>
+ * 时间被划分为固定长度的 tick，任务按到期的 tick 散列到环形的桶中，
+ * 转一圈以上才到期的任务记录剩余圈数。添加任务只是放入一个无锁队列，
+ * 由定时线程在下一个 tick 放进桶里；取消只是打标记，任务在所在的桶被扫描时移除。
+ * 所以添加和取消都是 O(1)，定时线程每个 tick 只扫描一个桶。
+ * 任务在定时线程中执行，不能阻塞。
+ */
+public class TimingWheel {
+
+    public static final class Timeout {
+        private final Runnable mTask;
+        private final long mDeadline;
+        private int mRounds;
+        private Timeout mNext;
+        private volatile boolean mCancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final long mTickMillis;
+    private final Timeout[] mBuckets;
+    private final ConcurrentLinkedQueue<Timeout> mPending = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread mThread;
+    private final long mStartTime;
+    private long mTick = 0;
+    private volatile boolean mStopped = false;
+
+    /**
+     * @param name       定时线程的名字
+     * @param tickMillis 每个 tick 的长度，也就是定时的精度
+     * @param wheelSize  桶的个数，必须是 2 的幂
+     */
+    public TimingWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of 2");
+        }
+        mTickMillis = tickMillis;
+        mBuckets = new Timeout[wheelSize];
+        mStartTime = now();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * 在 delayMillis 毫秒之后执行 task，实际执行时间按 tick 向后取整
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, now() + Math.max(delayMillis, 0));
+        mPending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 系统时间可能被调整，定时只使用单调时钟
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public void stop() {
+        mStopped = true;
+        mThread.interrupt();
+    }
+
+    private void loop() {
+        while (!mStopped) {
+            long tickTime = mStartTime + (mTick + 1) * mTickMillis;
+            long sleep = tickTime - now();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            mTick++;
+            transferPending();
+            expireBucket(mBuckets[(int) (mTick & (mBuckets.length - 1))]);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = mPending.poll()) != null) {
+            if (timeout.mCancelled) {
+                continue;
+            }
+            // 到期的 tick，已经过期的放进当前 tick 的桶，马上执行
+            long ticks = Math.max((timeout.mDeadline - mStartTime + mTickMillis - 1) / mTickMillis, mTick);
+            timeout.mRounds = (int) ((ticks - mTick) / mBuckets.length);
+            int index = (int) (ticks & (mBuckets.length - 1));
+            timeout.mNext = mBuckets[index];
+            mBuckets[index] = timeout;
+        }
+    }
+
+    private void expireBucket(Timeout head) {
+        int index = (int) (mTick & (mBuckets.length - 1));
+        Timeout prev = null;
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.mNext;
+            boolean remove;
+            if (timeout.mCancelled) {
+                remove = true;
+            } else if (timeout.mRounds > 0) {
+                timeout.mRounds--;
+                remove = false;
+            } else {
+                remove = true;
+                try {
+                    timeout.mTask.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (remove) {
+                if (prev == null) {
+                    mBuckets[index] = next;
+                } else {
+                    prev.mNext = next;
+                }
+                timeout.mNext = null;
+            } else {
+                prev = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
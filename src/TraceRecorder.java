@@ -0,0 +1,152 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 把 {@link SMTPServer} 每个会话收发的数据记录到二进制的跟踪文件中，用 {@link TraceReplayer} 回放
+ * <p/>
+ * 文件头是 MAGIC、VERSION 和开始记录的时间（毫秒），之后是按时间顺序排列的事件：
+ * 类型（1 字节）、会话编号、距上一个事件的微秒数，收发数据的事件后面再跟长度和数据。
+ * 数字都用变长编码，一个事件除数据以外通常只占 3~5 个字节。
+ * <p/>
+ * 记录的是服务器读到的命令和邮件内容、以及写出的响应，STARTTLS 之后记录的是解密后的明文，
+ * 握手本身不记录，只记下握手完成的时间点。注意 AUTH 的凭据也会原样记录下来。
+ * 所有会话写入同一个文件，写入时持有一把锁。写文件失败后停止记录，不影响会话本身。
+ */
+public class TraceRecorder {
+
+    /* package */ static final int MAGIC = 0x534d5452; // "SMTR"
+    /* package */ static final int VERSION = 1;
+
+    /* package */ static final int EVENT_OPEN = 1;
+    /* package */ static final int EVENT_INPUT = 2;
+    /* package */ static final int EVENT_OUTPUT = 3;
+    /* package */ static final int EVENT_STARTTLS = 4;
+    /* package */ static final int EVENT_CLOSE = 5;
+
+    private final File mFile;
+    private final DataOutputStream mOut;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicInteger mNextSession = new AtomicInteger();
+
+    private long mLastMicros = 0;
+    private long mEvents = 0;
+    private boolean mClosed = false;
+
+    public TraceRecorder(File file) throws IOException {
+        mFile = file;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mOut.writeLong(System.currentTimeMillis());
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return 新会话的编号，之后的事件都用它记录
+     */
+    public int openSession() {
+        int session = mNextSession.getAndIncrement();
+        write(EVENT_OPEN, session, null, 0, 0);
+        return session;
+    }
+
+    /**
+     * 记录从客户端读到的数据
+     */
+    public void recordInput(int session, byte[] b, int off, int len) {
+        write(EVENT_INPUT, session, b, off, len);
+    }
+
+    /**
+     * 记录写给客户端的响应
+     */
+    public void recordOutput(int session, byte[] b, int off, int len) {
+        write(EVENT_OUTPUT, session, b, off, len);
+    }
+
+    /**
+     * 记录 STARTTLS 握手完成，之后的数据都在 TLS 中传输
+     */
+    public void recordStartTls(int session) {
+        write(EVENT_STARTTLS, session, null, 0, 0);
+    }
+
+    public void closeSession(int session) {
+        write(EVENT_CLOSE, session, null, 0, 0);
+    }
+
+    public int getSessionCount() {
+        return mNextSession.get();
+    }
+
+    public long getEventCount() {
+        mLock.lock();
+        try {
+            return mEvents;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 停止记录并关闭文件，之后的事件被忽略。还没有结束的会话在文件中没有结束事件
+     */
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mOut.close();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void write(int type, int session, byte[] b, int off, int len) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            // 在锁内取时间，文件中的事件才是按时间排序的
+            long micros = Math.max((System.nanoTime() - mStartNanos) / 1000, mLastMicros);
+            mOut.writeByte(type);
+            writeVarLong(session);
+            writeVarLong(micros - mLastMicros);
+            if (b != null) {
+                writeVarLong(len);
+                mOut.write(b, off, len);
+            }
+            mLastMicros = micros;
+            mEvents++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            mClosed = true;
+            try {
+                mOut.close();
+            } catch (IOException closeError) {
+                // 已经报告过写入失败了
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 每个字节存 7 位，最高位表示后面还有字节
+     */
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            mOut.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+}
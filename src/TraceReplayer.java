@@ -0,0 +1,501 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 回放 {@link TraceRecorder} 记录的会话，用于性能回归测试
+ * <p/>
+ * 每个会话建立一个连接，按记录的顺序发送客户端的数据。发送之前先等服务器回复完记录中在它之前的响应，
+ * 只按响应的个数同步，不要求内容相同，所以可以对着其他的服务器回放。响应码与记录不同的次数、
+ * 每个响应相对于最近一次发送的延迟都会统计下来，用来比较不同版本的结果。
+ * <p/>
+ * 会话的开始时间和会话内事件的间隔按记录的时间除以 speed：1 是原速，大于 1 是加速，
+ * 不大于 0 时不等待，尽快发送。同时进行的会话数由 parallelism 限制，超出的会话推迟开始。
+ * 记录中有 STARTTLS 的会话在同样的位置发起握手，需要先调用 {@link #setSSLContext(SSLContext)}。
+ * <p/>
+ * 跟踪文件整个映射到内存，发送的数据直接取自映射的区域，不读入堆中。
+ */
+public class TraceReplayer {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final File mFile;
+    private final ByteBuffer mData;
+    private final long mRecordTime;
+    private final ArrayList<Session> mSessions = new ArrayList<Session>();
+    private long mDuration = 0;
+
+    private volatile SSLContext mSSLContext = null;
+    private volatile long mReplyTimeout = 60 * 1000;
+
+    private static class Event {
+        final int mType;
+        // 距记录开始的微秒数
+        final long mTime;
+        final int mOffset;
+        final int mLength;
+        // 发送之前应当已经收到的响应个数
+        final int mRepliesBefore;
+
+        Event(int type, long time, int offset, int length, int repliesBefore) {
+            mType = type;
+            mTime = time;
+            mOffset = offset;
+            mLength = length;
+            mRepliesBefore = repliesBefore;
+        }
+    }
+
+    private static class Session {
+        final long mStart;
+        final ArrayList<Event> mEvents = new ArrayList<Event>();
+        final ReplyScanner mReplies = new ReplyScanner();
+
+        Session(long start) {
+            mStart = start;
+        }
+    }
+
+    /**
+     * 一次回放的结果
+     */
+    public static class Result {
+        private final AtomicInteger mCompleted = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private final AtomicInteger mTimedOut = new AtomicInteger();
+        private final AtomicLong mBytesSent = new AtomicLong();
+        private final AtomicLong mReplies = new AtomicLong();
+        private final AtomicLong mMismatchedReplies = new AtomicLong();
+        // 单位微秒
+        private final Histogram mReplyLatency = new Histogram();
+        private long mElapsedNanos = 0;
+
+        public int getCompletedSessions() {
+            return mCompleted.get();
+        }
+
+        /**
+         * @return 连接失败或者没有收到全部响应就断开的会话数，包括超时的会话
+         */
+        public int getFailedSessions() {
+            return mFailed.get();
+        }
+
+        public int getTimedOutSessions() {
+            return mTimedOut.get();
+        }
+
+        public long getBytesSent() {
+            return mBytesSent.get();
+        }
+
+        public long getReplies() {
+            return mReplies.get();
+        }
+
+        /**
+         * @return 响应码与记录中不同的响应个数
+         */
+        public long getMismatchedReplies() {
+            return mMismatchedReplies.get();
+        }
+
+        public Histogram getReplyLatency() {
+            return mReplyLatency;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "sessions " + getCompletedSessions() + " completed, " + getFailedSessions() + " failed ("
+                    + getTimedOutSessions() + " timed out), replies " + getReplies() + " (" + getMismatchedReplies()
+                    + " mismatched), " + getBytesSent() + " bytes sent in " + getElapsedMillis()
+                    + "ms, reply latency p50/p99/max " + mReplyLatency.getPercentile(0.5) + "/"
+                    + mReplyLatency.getPercentile(0.99) + "/" + mReplyLatency.getMax() + "us";
+        }
+    }
+
+    public TraceReplayer(File file) throws IOException {
+        mFile = file;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + ": trace larger than 2GB is not supported");
+            }
+            mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+        if (mData.remaining() < 16 || mData.getInt() != TraceRecorder.MAGIC || mData.getInt() != TraceRecorder.VERSION) {
+            throw new IOException(file + ": not a session trace");
+        }
+        mRecordTime = mData.getLong();
+        parse();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return 开始记录的时间，与 {@link System#currentTimeMillis()} 相同的单位
+     */
+    public long getRecordTime() {
+        return mRecordTime;
+    }
+
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * @return 记录中第一个事件到最后一个事件的时间，单位毫秒
+     */
+    public long getDurationMillis() {
+        return mDuration / 1000;
+    }
+
+    /**
+     * 回放记录中有 STARTTLS 的会话时使用的客户端 context，见 {@link TLSContexts}
+     */
+    public void setSSLContext(SSLContext context) {
+        mSSLContext = context;
+    }
+
+    /**
+     * 等待一次响应的最长时间，超时后放弃这个会话
+     */
+    public void setReplyTimeout(long millis) {
+        mReplyTimeout = millis;
+    }
+
+    /**
+     * 回放所有会话，全部结束后返回
+     *
+     * @param speed       回放速度，1 为原速，不大于 0 表示尽快发送
+     * @param parallelism 最多同时进行的会话数
+     */
+    public Result replay(String host, int port, double speed, int parallelism) throws InterruptedException {
+        Result result = new Result();
+        TimingWheel timer = new TimingWheel("TraceReplayer-timer", 100, 512);
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        long start = System.nanoTime();
+        try {
+            for (Session session : mSessions) {
+                pool.execute(new SessionReplay(session, host, port, speed, start, timer, result));
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            pool.shutdownNow();
+            timer.stop();
+        }
+        result.mElapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void parse() throws IOException {
+        HashMap<Integer, Session> open = new HashMap<Integer, Session>();
+        long time = 0;
+        try {
+            while (mData.hasRemaining()) {
+                int type = mData.get();
+                int id = (int) readVarLong(mData);
+                time += readVarLong(mData);
+                int offset = 0;
+                int length = 0;
+                if (type == TraceRecorder.EVENT_INPUT || type == TraceRecorder.EVENT_OUTPUT) {
+                    length = (int) readVarLong(mData);
+                    offset = mData.position();
+                    mData.position(offset + length);
+                }
+                mDuration = time;
+
+                Session session = open.get(id);
+                if (type == TraceRecorder.EVENT_OPEN) {
+                    session = new Session(time);
+                    open.put(id, session);
+                    mSessions.add(session);
+                } else if (session == null) {
+                    throw new IOException(mFile + ": event for unknown session " + id);
+                } else if (type == TraceRecorder.EVENT_OUTPUT) {
+                    ByteBuffer reply = mData.duplicate();
+                    reply.limit(offset + length).position(offset);
+                    session.mReplies.feed(reply);
+                } else if (type == TraceRecorder.EVENT_INPUT || type == TraceRecorder.EVENT_STARTTLS) {
+                    session.mEvents.add(new Event(type, time, offset, length, session.mReplies.getCount()));
+                } else if (type == TraceRecorder.EVENT_CLOSE) {
+                    open.remove(id);
+                } else {
+                    throw new IOException(mFile + ": unknown event type " + type);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // 记录时没有正常关闭，最后一个事件不完整
+        } catch (IllegalArgumentException e) {
+            // 同上，数据的长度超出了文件结尾
+        }
+    }
+
+    private static long readVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed number in trace");
+    }
+
+    /**
+     * 按行扫描 SMTP 响应，记下每个完整响应（最后一行的第 4 个字符不是 '-'）的响应码
+     */
+    private static class ReplyScanner {
+        private int[] mCodes = new int[16];
+        private int mCount = 0;
+        // 当前行的前 4 个字节
+        private final byte[] mHead = new byte[4];
+        private int mLineLength = 0;
+
+        void feed(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                byte b = data.get();
+                if (b == '\n') {
+                    endLine();
+                    mLineLength = 0;
+                } else {
+                    if (mLineLength < mHead.length) {
+                        mHead[mLineLength] = b;
+                    }
+                    mLineLength++;
+                }
+            }
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        int getCode(int index) {
+            return mCodes[index];
+        }
+
+        private void endLine() {
+            if (mLineLength < 3 || (mLineLength > 3 && mHead[3] == '-')) {
+                return;
+            }
+            int code = 0;
+            for (int i = 0; i < 3; i++) {
+                if (mHead[i] < '0' || mHead[i] > '9') {
+                    return;
+                }
+                code = code * 10 + mHead[i] - '0';
+            }
+            if (mCount == mCodes.length) {
+                mCodes = Arrays.copyOf(mCodes, mCount * 2);
+            }
+            mCodes[mCount++] = code;
+        }
+    }
+
+    private class SessionReplay implements Runnable {
+        private final Session mSession;
+        private final String mHost;
+        private final int mPort;
+        private final double mSpeed;
+        private final long mReplayStart;
+        private final TimingWheel mTimer;
+        private final Result mResult;
+        private final long mTimeout = mReplyTimeout;
+
+        private SocketChannel mChannel = null;
+        private ByteChannel mIO = null;
+        private final ReplyScanner mReplies = new ReplyScanner();
+        private long mLastSend = 0;
+
+        // 与 SMTPServer 的超时检查相同：读取之前记下截止时间，由定时线程检查
+        private volatile long mReadDeadline = 0;
+        private volatile boolean mFinished = false;
+        private volatile boolean mTimedOut = false;
+        private TimingWheel.Timeout mTimeoutCheck = null;
+        private final Runnable mTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                checkTimeout();
+            }
+        };
+
+        SessionReplay(Session session, String host, int port, double speed, long replayStart, TimingWheel timer, Result result) {
+            mSession = session;
+            mHost = host;
+            mPort = port;
+            mSpeed = speed;
+            mReplayStart = replayStart;
+            mTimer = timer;
+            mResult = result;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = BufferPool.HEAP.acquire(READ_BUFFER_SIZE);
+            try {
+                long sessionStart = waitUntil(mReplayStart, mSession.mStart);
+                mChannel = SocketChannel.open(new InetSocketAddress(mHost, mPort));
+                mChannel.socket().setTcpNoDelay(true);
+                mIO = mChannel;
+                mTimeoutCheck = mTimer.schedule(mTimeoutTask, mTimeout);
+                for (Event event : mSession.mEvents) {
+                    // 先收响应再等待，响应的延迟才不包括等待的时间。
+                    // 以会话实际开始的时间为准，前面的会话推迟了也保持会话内的间隔
+                    awaitReplies(event.mRepliesBefore, buffer);
+                    waitUntil(sessionStart, event.mTime - mSession.mStart);
+                    if (event.mType == TraceRecorder.EVENT_INPUT) {
+                        send(event);
+                    } else {
+                        startTls();
+                    }
+                }
+                awaitReplies(mSession.mReplies.getCount(), buffer);
+                mResult.mCompleted.incrementAndGet();
+            } catch (IOException e) {
+                mResult.mFailed.incrementAndGet();
+                if (mTimedOut) {
+                    mResult.mTimedOut.incrementAndGet();
+                } else {
+                    e.printStackTrace();
+                }
+            } finally {
+                mFinished = true;
+                if (mTimeoutCheck != null) {
+                    mTimeoutCheck.cancel();
+                }
+                if (mIO != null) {
+                    try {
+                        mIO.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                BufferPool.HEAP.release(buffer);
+            }
+        }
+
+        /**
+         * 等到 base 之后 micros 微秒（按回放速度换算）
+         *
+         * @return 等待结束的时间
+         */
+        private long waitUntil(long base, long micros) throws InterruptedIOException {
+            if (mSpeed > 0) {
+                long delay = base + (long) (micros * 1000 / mSpeed) - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            return System.nanoTime();
+        }
+
+        private void send(Event event) throws IOException {
+            ByteBuffer data = mData.duplicate();
+            data.limit(event.mOffset + event.mLength).position(event.mOffset);
+            while (data.hasRemaining()) {
+                mIO.write(data);
+            }
+            mResult.mBytesSent.addAndGet(event.mLength);
+            mLastSend = System.nanoTime();
+        }
+
+        private void startTls() throws IOException {
+            SSLContext context = mSSLContext;
+            if (context == null) {
+                throw new IOException("trace uses STARTTLS but no SSLContext is set");
+            }
+            SSLEngine engine = context.createSSLEngine(mHost, mPort);
+            engine.setUseClientMode(true);
+            TLSChannel tls = new TLSChannel(mChannel, engine);
+            mIO = tls;
+            mReadDeadline = System.currentTimeMillis() + mTimeout;
+            try {
+                tls.handshake();
+            } finally {
+                mReadDeadline = 0;
+            }
+        }
+
+        /**
+         * 读取响应，直到一共收到 count 个
+         */
+        private void awaitReplies(int count, ByteBuffer buffer) throws IOException {
+            while (mReplies.getCount() < count) {
+                buffer.clear();
+                mReadDeadline = System.currentTimeMillis() + mTimeout;
+                int n;
+                try {
+                    n = mIO.read(buffer);
+                } finally {
+                    mReadDeadline = 0;
+                }
+                if (n == -1) {
+                    throw new EOFException("connection closed after " + mReplies.getCount() + " of "
+                            + mSession.mReplies.getCount() + " replies");
+                }
+                int before = mReplies.getCount();
+                buffer.flip();
+                mReplies.feed(buffer);
+                long latency = (System.nanoTime() - mLastSend) / 1000;
+                for (int i = before; i < mReplies.getCount(); i++) {
+                    mResult.mReplies.incrementAndGet();
+                    // 第一个响应是服务器的问候，不对应任何发送
+                    if (mLastSend != 0) {
+                        mResult.mReplyLatency.record(latency);
+                    }
+                    if (i >= mSession.mReplies.getCount() || mReplies.getCode(i) != mSession.mReplies.getCode(i)) {
+                        mResult.mMismatchedReplies.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        private void checkTimeout() {
+            if (mFinished) {
+                return;
+            }
+            long deadline = mReadDeadline;
+            long now = System.currentTimeMillis();
+            if (deadline == 0 || now < deadline) {
+                mTimeoutCheck = mTimer.schedule(mTimeoutTask, deadline == 0 ? mTimeout : deadline - now);
+                return;
+            }
+            mTimedOut = true;
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}